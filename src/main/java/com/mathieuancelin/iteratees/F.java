@@ -20,6 +20,9 @@ package com.mathieuancelin.iteratees;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 public final class F { 
 
@@ -41,6 +44,34 @@ public final class F {
         R apply(T t);
     }
 
+    public static interface Function2<A, B, R> {
+        R apply(A a, B b);
+    }
+
+    public static interface IntFunction {
+        int apply(int i);
+    }
+
+    public static interface IntPredicate {
+        boolean apply(int i);
+    }
+
+    public static interface LongFunction {
+        long apply(long l);
+    }
+
+    public static interface LongPredicate {
+        boolean apply(long l);
+    }
+
+    public static interface DoubleFunction {
+        double apply(double d);
+    }
+
+    public static interface DoublePredicate {
+        boolean apply(double d);
+    }
+
     public static interface Monad<T> {
         <R> Option<R> map(Function<T, R> function);
         Option<T> flatMap(Function<T, Option<T>> action);
@@ -213,16 +244,33 @@ public final class F {
     
     public static class Promise<V> implements Future<V>, F.Action<V> {
 
-        private final CountDownLatch taskLock = new CountDownLatch(1);
-        
+        private static final AtomicReferenceFieldUpdater<Promise, Object> STATE =
+            AtomicReferenceFieldUpdater.newUpdater(Promise.class, Object.class, "state");
+
+        private volatile Object state = null;
+
         private boolean cancelled = false;
-        
-        private List<F.Action<Promise<V>>> callbacks = new ArrayList<F.Action<Promise<V>>>();
-        
-        private boolean invoked = false;
-        
-        private V result = null;
-        
+
+        private static final class Outcome {
+            private final Object result;
+            private final Throwable error;
+            public Outcome(Object result, Throwable error) {
+                this.result = result;
+                this.error = error;
+            }
+        }
+
+        private static final class Callback {
+            private final F.Action action;
+            private final Executor executor;
+            private final Callback next;
+            public Callback(F.Action action, Executor executor, Callback next) {
+                this.action = action;
+                this.executor = executor;
+                this.next = next;
+            }
+        }
+
         @Override
         public boolean cancel(boolean mayInterruptIfRunning) {
             return cancelled;
@@ -235,72 +283,221 @@ public final class F {
 
         @Override
         public boolean isDone() {
-            return invoked;
+            return state instanceof Outcome;
         }
 
         public V getOrNull() {
-            return result;
+            Object s = state;
+            return s instanceof Outcome ? (V) ((Outcome) s).result : null;
+        }
+        
+        public Throwable getError() {
+            Object s = state;
+            return s instanceof Outcome ? ((Outcome) s).error : null;
+        }
+        
+        public boolean isFailure() {
+            return getError() != null;
         }
 
         @Override
         public V get() throws InterruptedException, ExecutionException {
-            taskLock.await();
-            return result;
+            awaitOutcome(-1L);
+            return outcome();
         }
 
         @Override
         public V get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-            taskLock.await(timeout, unit);
-            return result;
+            if (!awaitOutcome(unit.toNanos(timeout))) {
+                throw new TimeoutException();
+            }
+            return outcome();
+        }
+
+        private V outcome() throws ExecutionException {
+            Outcome outcome = (Outcome) state;
+            if (outcome.error != null) {
+                throw new ExecutionException(outcome.error);
+            }
+            return (V) outcome.result;
+        }
+
+        private boolean awaitOutcome(long nanos) throws InterruptedException {
+            if (state instanceof Outcome) {
+                return true;
+            }
+            final Thread thread = Thread.currentThread();
+            F.Action<Promise<V>> waiter = new F.Action<Promise<V>>() {
+                @Override
+                public void apply(Promise<V> t) {
+                    LockSupport.unpark(thread);
+                }
+            };
+            onRedeem(waiter);
+            boolean done = false;
+            try {
+                long deadline = System.nanoTime() + nanos;
+                while (!(state instanceof Outcome)) {
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    if (nanos < 0L) {
+                        LockSupport.park(this);
+                    } else {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0L) {
+                            return false;
+                        }
+                        LockSupport.parkNanos(this, left);
+                    }
+                }
+                done = true;
+                return true;
+            } finally {
+                if (!done) {
+                    removeCallback(waiter);
+                }
+            }
+        }
+
+        // unlinks a callback that gave up waiting, copying the nodes above it
+        private void removeCallback(F.Action<Promise<V>> action) {
+            Object s;
+            Callback rebuilt;
+            do {
+                s = state;
+                if (!(s instanceof Callback)) {
+                    return;
+                }
+                Callback found = (Callback) s;
+                while (found != null && found.action != action) {
+                    found = found.next;
+                }
+                if (found == null) {
+                    return;
+                }
+                rebuilt = found.next;
+                List<Callback> above = new ArrayList<Callback>();
+                for (Callback c = (Callback) s; c != found; c = c.next) {
+                    above.add(c);
+                }
+                for (int i = above.size() - 1; i >= 0; i--) {
+                    Callback c = above.get(i);
+                    rebuilt = new Callback(c.action, c.executor, rebuilt);
+                }
+            } while (!STATE.compareAndSet(this, s, rebuilt));
         }
 
         @Override
         public void apply(V result) {
-            synchronized (this) {
-                if (!invoked) {
-                    invoked = true;
-                    this.result = result;
-                    taskLock.countDown();
-                } else {
-                    return;
+            complete(result, null);
+        }
+        
+        public void failure(Throwable error) {
+            complete(null, error);
+        }
+        
+        private boolean complete(V result, Throwable error) {
+            Outcome outcome = new Outcome(result, error);
+            Object s;
+            do {
+                s = state;
+                if (s instanceof Outcome) {
+                    return false;
                 }
+            } while (!STATE.compareAndSet(this, s, outcome));
+            Callback reversed = null;
+            for (Callback c = (Callback) s; c != null; c = c.next) {
+                reversed = new Callback(c.action, c.executor, reversed);
             }
-            for (F.Action<Promise<V>> callback : callbacks) {
-                callback.apply(this);
+            for (Callback c = reversed; c != null; c = c.next) {
+                dispatch(c.action, c.executor);
             }
+            return true;
         }
 
-        public void onRedeem(F.Action<Promise<V>> callback) {
-            synchronized (this) {
-                if (!invoked) {
-                    callbacks.add(callback);
+        private void dispatch(final F.Action<Promise<V>> callback, Executor executor) {
+            if (executor == null) {
+                try {
+                    callback.apply(this);
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
+                return;
             }
-            if (invoked) {
-                callback.apply(this);
-            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.apply(Promise.this);
+                }
+            });
+        }
+
+        public void onRedeem(F.Action<Promise<V>> callback) {
+            onRedeem(callback, null);
+        }
+
+        public void onRedeem(F.Action<Promise<V>> callback, Executor executor) {
+            Object s;
+            do {
+                s = state;
+                if (s instanceof Outcome) {
+                    dispatch(callback, executor);
+                    return;
+                }
+            } while (!STATE.compareAndSet(this, s, new Callback(callback, executor, (Callback) s)));
         }
         
         public void await() throws InterruptedException {
-            taskLock.await();
+            awaitOutcome(-1L);
         }
         
         public void await(long l, TimeUnit t) throws InterruptedException {
-            taskLock.await(l, t);
+            awaitOutcome(t.toNanos(l));
         }
         
+        public Promise<V> within(final long timeout, final TimeUnit unit) {
+            final Promise<V> promise = new Promise<V>();
+            final Timeout expiry = schedule(new Runnable() {
+                @Override
+                public void run() {
+                    promise.failure(new TimeoutException("Promise not redeemed within " + timeout + " " + unit));
+                }
+            }, timeout, unit);
+            this.onRedeem(new F.Action<Promise<V>>() {
+                @Override
+                public void apply(Promise<V> t) {
+                    expiry.cancel();
+                    if (t.isFailure()) {
+                        promise.failure(t.getError());
+                    } else {
+                        promise.apply(t.getOrNull());
+                    }
+                }
+            });
+            return promise;
+        }
+
         public <B> Promise<B> map(final Function<V, B> map) {
+            return map(map, null);
+        }
+
+        public <B> Promise<B> map(final Function<V, B> map, Executor executor) {
             final Promise<B> promise = new Promise<B>();
             this.onRedeem(new F.Action<Promise<V>>() {
                 @Override
                 public void apply(Promise<V> t) {
+                    if (t.isFailure()) {
+                        promise.failure(t.getError());
+                        return;
+                    }
                     try {
-                        promise.apply(map.apply(t.get()));
+                        promise.apply(map.apply(t.getOrNull()));
                     } catch (Exception ex) {
-                        ex.printStackTrace();
+                        promise.failure(ex);
                     }
                 }
-            });
+            }, executor);
             return promise;
         }
         
@@ -313,6 +510,8 @@ public final class F {
                         if (predicate.apply(t.get())) {
                             promise.apply(t.get());
                         }
+                    } catch (ExecutionException ex) {
+                        promise.failure(ex.getCause());
                     } catch (Exception ex) {
                         ex.printStackTrace();
                     }
@@ -330,6 +529,8 @@ public final class F {
                         if (!predicate.apply(t.get())) {
                             promise.apply(t.get());
                         }
+                    } catch (ExecutionException ex) {
+                        promise.failure(ex.getCause());
                     } catch (Exception ex) {
                         ex.printStackTrace();
                     }
@@ -339,25 +540,45 @@ public final class F {
         }
         
         public <B> Promise<B> flatMap(final Function<V, Promise<B>> map) {
+            return flatMap(map, null);
+        }
+
+        public <B> Promise<B> flatMap(final Function<V, Promise<B>> map, Executor executor) {
             final Promise<B> promise = new Promise<B>();
             this.onRedeem(new F.Action<Promise<V>>() {
                 @Override
                 public void apply(Promise<V> t) {
+                    if (t.isFailure()) {
+                        promise.failure(t.getError());
+                        return;
+                    }
                     try {
-                        promise.apply(map.apply(t.get()).get());
+                        map.apply(t.getOrNull()).onRedeem(new F.Action<Promise<B>>() {
+                            @Override
+                            public void apply(Promise<B> inner) {
+                                if (inner.isFailure()) {
+                                    promise.failure(inner.getError());
+                                } else {
+                                    promise.apply(inner.getOrNull());
+                                }
+                            }
+                        });
                     } catch (Exception ex) {
-                        ex.printStackTrace();
+                        promise.failure(ex);
                     }
                 }
-            });
+            }, executor);
             return promise;
         }
         public static <T> Promise<List<T>> waitAll(final Promise<T>... promises) {
-            return waitAll(Arrays.asList(promises));
+            return sequence(Arrays.asList(promises));
         }
 
         public static <T> Promise<List<T>> waitAll(final Collection<Promise<T>> promises) {
-            final CountDownLatch waitAllLock = new CountDownLatch(promises.size());
+            return sequence(promises);
+        }
+
+        public static <T> Promise<List<T>> sequence(final Collection<Promise<T>> promises) {
             final Promise<List<T>> result = new Promise<List<T>>() {
 
                 @Override
@@ -377,69 +598,112 @@ public final class F {
                     }
                     return r;
                 }
-
-                @Override
-                public boolean isDone() {
-                    boolean r = true;
-                    for (Promise<T> f : promises) {
-                        r = r & f.isDone();
+            };
+            final Object[] values = new Object[promises.size()];
+            final AtomicInteger remaining = new AtomicInteger(values.length);
+            if (values.length == 0) {
+                result.apply(new ArrayList<T>());
+                return result;
+            }
+            int index = 0;
+            for (Promise<T> promise : promises) {
+                final int slot = index++;
+                promise.onRedeem(new F.Action<Promise<T>>() {
+                    @Override
+                    public void apply(Promise<T> completed) {
+                        if (completed.isFailure()) {
+                            result.failure(completed.getError());
+                            return;
+                        }
+                        values[slot] = completed.getOrNull();
+                        if (remaining.decrementAndGet() == 0) {
+                            result.apply(new ArrayList<T>((List<T>) Arrays.asList(values)));
+                        }
                     }
-                    return r;
-                }
+                });
+            }
+            return result;
+        }
 
-                @Override
-                public List<T> get() throws InterruptedException, ExecutionException {
-                    waitAllLock.await();
-                    List<T> r = new ArrayList<T>();
-                    for (Promise<T> f : promises) {
-                        r.add(f.get());
-                    }
-                    return r;
-                }
+        public static <T> Promise<T> waitAny(final Promise<T>... promises) {
+            return waitAny(Arrays.asList(promises));
+        }
 
-                @Override
-                public List<T> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
-                    waitAllLock.await(timeout, unit);
-                    return get();
-                }
-            };
+        public static <T> Promise<T> waitAny(final Collection<Promise<T>> promises) {
+            final Promise<T> result = new Promise<T>();
             final F.Action<Promise<T>> action = new F.Action<Promise<T>>() {
                 @Override
                 public void apply(Promise<T> completed) {
-                    waitAllLock.countDown();
-                    if (waitAllLock.getCount() == 0) {
-                        try {
-                            result.apply(result.get());
-                        } catch (Exception e) {
-                            throw new RuntimeException(e);
-                        }
+                    if (completed.isFailure()) {
+                        result.failure(completed.getError());
+                    } else {
+                        result.apply(completed.getOrNull());
                     }
                 }
             };
-            for (Promise<T> f : promises) {
-                f.onRedeem(action);
+            for (Promise<T> promise : promises) {
+                if (result.isDone()) {
+                    break;
+                }
+                promise.onRedeem(action);
             }
             return result;
         }
 
-        public static <T> Promise<T> waitAny(final Promise<T>... futures) {
-            final Promise<T> result = new Promise<T>();
+        public static <T> Promise<List<T>> firstN(final int n, final Collection<Promise<T>> promises) {
+            final Promise<List<T>> result = new Promise<List<T>>();
+            final int total = promises.size();
+            if (n <= 0) {
+                result.apply(new ArrayList<T>());
+                return result;
+            }
+            if (n > total) {
+                result.failure(new IllegalArgumentException("Cannot wait for " + n + " of " + total + " promises"));
+                return result;
+            }
+            final Object[] values = new Object[n];
+            final AtomicInteger claimed = new AtomicInteger(0);
+            final AtomicInteger filled = new AtomicInteger(0);
+            final AtomicInteger failed = new AtomicInteger(0);
             final F.Action<Promise<T>> action = new F.Action<Promise<T>>() {
                 @Override
                 public void apply(Promise<T> completed) {
-                    synchronized (this) {
-                        if (result.isDone()) {
-                            return;
+                    if (completed.isFailure()) {
+                        if (failed.incrementAndGet() > total - n) {
+                            result.failure(completed.getError());
+                        }
+                        return;
+                    }
+                    int slot = claimed.getAndIncrement();
+                    if (slot < n) {
+                        values[slot] = completed.getOrNull();
+                        if (filled.incrementAndGet() == n) {
+                            result.apply(new ArrayList<T>((List<T>) Arrays.asList(values)));
                         }
                     }
-                    result.apply(completed.getOrNull());
                 }
             };
-            for (Promise<T> f : futures) {
-                f.onRedeem(action);
+            for (Promise<T> promise : promises) {
+                if (result.isDone()) {
+                    break;
+                }
+                promise.onRedeem(action);
             }
             return result;
         }
+
+        public static <T, R> Promise<R> reduce(final Collection<Promise<T>> promises, final R zero, final Function2<R, T, R> reducer) {
+            return sequence(promises).map(new Function<List<T>, R>() {
+                @Override
+                public R apply(List<T> values) {
+                    R acc = zero;
+                    for (int i = 0; i < values.size(); i++) {
+                        acc = reducer.apply(acc, values.get(i));
+                    }
+                    return acc;
+                }
+            });
+        }
         
         public static <T> Promise<T> pure(T t) {
             Promise<T> promise = new Promise<T>();
@@ -447,6 +711,103 @@ public final class F {
             return promise;
         }
     }
+
+    static Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        TimerWheel.WHEEL.pending.offer(timeout);
+        return timeout;
+    }
+
+    static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled = false;
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+        void cancel() {
+            cancelled = true;
+        }
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static final class TimerWheel implements Runnable {
+        private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+        private static final int SIZE = 512;
+        private static final TimerWheel WHEEL = new TimerWheel();
+        private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+        private final Timeout[] buckets = new Timeout[SIZE];
+        private final long start = System.nanoTime();
+        private final ExecutorService expiries;
+        private long tick = 0L;
+        private TimerWheel() {
+            expiries = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(0);
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "iteratees-timeout-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            Thread worker = new Thread(this, "iteratees-timer");
+            worker.setDaemon(true);
+            worker.start();
+        }
+        @Override
+        public void run() {
+            while (true) {
+                long sleep = start + tick * TICK - System.nanoTime();
+                if (sleep > 0L) {
+                    LockSupport.parkNanos(this, sleep);
+                    continue;
+                }
+                transfer();
+                expire((int) (tick & (SIZE - 1)));
+                tick++;
+            }
+        }
+        private void transfer() {
+            Timeout timeout;
+            while ((timeout = pending.poll()) != null) {
+                if (timeout.cancelled) {
+                    continue;
+                }
+                long ticks = Math.max(tick, (timeout.deadline - start + TICK - 1) / TICK);
+                timeout.rounds = (ticks - tick) / SIZE;
+                int index = (int) (ticks & (SIZE - 1));
+                timeout.next = buckets[index];
+                buckets[index] = timeout;
+            }
+        }
+        private void expire(int index) {
+            Timeout previous = null;
+            Timeout timeout = buckets[index];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.cancelled || timeout.rounds <= 0L) {
+                    if (previous == null) {
+                        buckets[index] = next;
+                    } else {
+                        previous.next = next;
+                    }
+                    timeout.next = null;
+                    if (!timeout.cancelled) {
+                        expiries.execute(timeout.task);
+                    }
+                } else {
+                    timeout.rounds--;
+                    previous = timeout;
+                }
+                timeout = next;
+            }
+        }
+    }
     
     public static <K> Option<K> caseClassOf(final Class<K> clazz, Object o) {
         if (clazz.isInstance(o)) {
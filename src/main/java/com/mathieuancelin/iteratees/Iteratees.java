@@ -20,16 +20,45 @@ package com.mathieuancelin.iteratees;
 import akka.actor.*;
 import akka.util.Duration;
 import com.mathieuancelin.iteratees.F;
+import com.typesafe.config.ConfigFactory;
 import static com.mathieuancelin.iteratees.F.*;
 import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class Iteratees {
 
@@ -37,20 +66,38 @@ public class Iteratees {
         ActorSystem system();
     }
 
+    public static final String DEFAULT_DISPATCHER = "default";
+    public static final String BLOCKING_DISPATCHER = "blocking-io";
+
+    private static final String BLOCKING_DISPATCHER_CONFIG =
+        "iteratees.blocking-io-dispatcher {\n"
+        + "  type = Dispatcher\n"
+        + "  executor = thread-pool-executor\n"
+        + "  thread-pool-executor {\n"
+        + "    core-pool-size-min = 2\n"
+        + "    core-pool-size-factor = 2.0\n"
+        + "    core-pool-size-max = 16\n"
+        + "  }\n"
+        + "  throughput = 1\n"
+        + "}\n";
+
     private static enum AkkaInstance implements Akka {
         AKKA {
-            private final ActorSystem context = ActorSystem.create("IterateesSystem");
+            private final ActorSystem context = ActorSystem.create("IterateesSystem",
+                ConfigFactory.load().withFallback(ConfigFactory.parseString(BLOCKING_DISPATCHER_CONFIG)));
             public ActorSystem system() {
                 return context;
             }
         }
     }
 
+    private static volatile Backend backend = new AkkaBackend();
+
     static {
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
-                AkkaInstance.AKKA.system().shutdown();
+                backend.shutdown();
             }
         });
     }
@@ -59,758 +106,4147 @@ public class Iteratees {
         return AkkaInstance.AKKA.system();
     }
 
-    public static final class Elem<I> {
+    public static Backend backend() {
+        return backend;
+    }
+
+    public static void useBackend(Backend newBackend) {
+        backend = newBackend;
+    }
+
+    public static interface Backend {
+        public Ref actorOf(Forward forward);
+        public Cancellable schedule(long delay, long every, TimeUnit unit, Runnable task);
+        public Map<String, Integer> queueDepths();
+        public void shutdown();
+    }
+
+    public static interface Blocking {}
+
+    // stages that hold on to elements after acknowledging them
+    static interface Retaining {}
+
+    // queue depths cost an envelope per message on this backend, so they
+    // are only tracked when asked for and reported as zero otherwise
+    public static class AkkaBackend implements Backend {
+        private static final ConcurrentHashMap<ActorRef, QueueDepth> mailboxes = new ConcurrentHashMap<ActorRef, QueueDepth>();
+        private final boolean trackQueueDepths;
+        public AkkaBackend() {
+            this(false);
+        }
+        public AkkaBackend(boolean trackQueueDepths) {
+            this.trackQueueDepths = trackQueueDepths;
+        }
+        @Override
+        public Ref actorOf(Forward forward) {
+            String dispatcher = dispatcherOf(forward);
+            QueueDepth depth = trackQueueDepths ? new QueueDepth(dispatcher) : null;
+            Props props = forwarderActorProps(forward, depth);
+            if (dispatcher.equals(BLOCKING_DISPATCHER)) {
+                props = props.withDispatcher("iteratees.blocking-io-dispatcher");
+            }
+            return new ActorRefWrapper(system().actorOf(props), depth);
+        }
+        @Override
+        public Map<String, Integer> queueDepths() {
+            Map<String, Integer> depths = new HashMap<String, Integer>();
+            depths.put(DEFAULT_DISPATCHER, 0);
+            depths.put(BLOCKING_DISPATCHER, 0);
+            for (QueueDepth depth : mailboxes.values()) {
+                depths.put(depth.dispatcher, depths.get(depth.dispatcher) + depth.pending.get());
+            }
+            return depths;
+        }
+        @Override
+        public Cancellable schedule(long delay, long every, TimeUnit unit, Runnable task) {
+            if (every <= 0) {
+                return system().scheduler().scheduleOnce(Duration.apply(delay, unit), task);
+            }
+            return system().scheduler().schedule(Duration.apply(delay, unit), Duration.apply(every, unit), task);
+        }
+        @Override
+        public void shutdown() {
+            system().shutdown();
+        }
+    }
+
+    public static class ExecutorBackend implements Backend {
+        private final ExecutorService executor;
+        private volatile ExecutorService blockingExecutor;
+        private final ScheduledExecutorService scheduler;
+        private final int throughput;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private final AtomicInteger blockingPending = new AtomicInteger(0);
+        public ExecutorBackend() {
+            this(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("iteratees-executor")), 100);
+        }
+        public ExecutorBackend(ExecutorService executor, int throughput) {
+            this(executor, null, throughput);
+        }
+        public ExecutorBackend(ExecutorService executor, ExecutorService blockingExecutor, int throughput) {
+            this.executor = executor;
+            this.blockingExecutor = blockingExecutor;
+            this.throughput = throughput;
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("iteratees-scheduler"));
+        }
+        @Override
+        public Ref actorOf(Forward forward) {
+            if (dispatcherOf(forward).equals(BLOCKING_DISPATCHER)) {
+                return new MailboxRef(forward, blockingExecutor(), 1, blockingPending);
+            }
+            return new MailboxRef(forward, executor, throughput, pending);
+        }
+        @Override
+        public Map<String, Integer> queueDepths() {
+            Map<String, Integer> depths = new HashMap<String, Integer>();
+            depths.put(DEFAULT_DISPATCHER, pending.get());
+            depths.put(BLOCKING_DISPATCHER, blockingPending.get());
+            return depths;
+        }
+        @Override
+        public Cancellable schedule(long delay, long every, TimeUnit unit, Runnable task) {
+            final ScheduledFuture<?> future;
+            if (every <= 0) {
+                future = scheduler.schedule(task, delay, unit);
+            } else {
+                future = scheduler.scheduleAtFixedRate(task, delay, every, unit);
+            }
+            return new Cancellable() {
+                @Override
+                public void cancel() {
+                    future.cancel(false);
+                }
+                @Override
+                public boolean isCancelled() {
+                    return future.isCancelled();
+                }
+            };
+        }
+        @Override
+        public synchronized void shutdown() {
+            scheduler.shutdownNow();
+            executor.shutdown();
+            if (blockingExecutor != null) {
+                blockingExecutor.shutdown();
+            }
+        }
+        // the blocking pool is only started once a blocking stage shows up
+        private ExecutorService blockingExecutor() {
+            ExecutorService pool = blockingExecutor;
+            if (pool == null) {
+                synchronized (this) {
+                    if (blockingExecutor == null) {
+                        blockingExecutor = Executors.newFixedThreadPool(Math.min(16, Math.max(2, Runtime.getRuntime().availableProcessors() * 2)),
+                            daemonThreads("iteratees-blocking-io"));
+                    }
+                    pool = blockingExecutor;
+                }
+            }
+            return pool;
+        }
+    }
+
+    private static String dispatcherOf(Forward forward) {
+        return forward instanceof Blocking ? BLOCKING_DISPATCHER : DEFAULT_DISPATCHER;
+    }
+
+    private static final class QueueDepth {
+        private final String dispatcher;
+        private final AtomicInteger pending = new AtomicInteger(0);
+        public QueueDepth(String dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public static enum SignalType { ELEM, ELEMS, EOF, EMPTY, RUN, CONT, DEMAND, DONE, ERROR, OTHER }
+    public static interface Signal {
+        public SignalType type();
+    }
+    public static SignalType typeOf(Object msg) {
+        if (msg instanceof Signal) {
+            return ((Signal) msg).type();
+        }
+        return SignalType.OTHER;
+    }
+    public static final class Elem<I> implements Signal {
         private final I e;
         public Elem(I e) { this.e = e; }
         public Option<I> get() { return Option.apply(e); }
+        public I getOrNull() { return e; }
+        public SignalType type() { return SignalType.ELEM; }
     }
-    public static enum EOF { INSTANCE }
-    public static enum Empty { INSTANCE }
-    private static enum Run { INSTANCE }
-    public static enum Done { INSTANCE }
-    public static enum Cont { INSTANCE }
-    public static final class Error<E> {
+    public static final class Elems<I> implements Signal {
+        private final List<I> elems;
+        public Elems(List<I> elems) { this.elems = elems; }
+        public List<I> get() { return elems; }
+        public SignalType type() { return SignalType.ELEMS; }
+    }
+    public static enum EOF implements Signal {
+        INSTANCE;
+        public SignalType type() { return SignalType.EOF; }
+    }
+    public static enum Empty implements Signal {
+        INSTANCE;
+        public SignalType type() { return SignalType.EMPTY; }
+    }
+    private static enum Run implements Signal {
+        INSTANCE;
+        public SignalType type() { return SignalType.RUN; }
+    }
+    public static enum Done implements Signal {
+        INSTANCE;
+        public SignalType type() { return SignalType.DONE; }
+    }
+    public static enum Cont implements Signal {
+        INSTANCE;
+        public SignalType type() { return SignalType.CONT; }
+    }
+    public static final class Demand implements Signal {
+        public final int n;
+        public Demand(int n) {
+            this.n = n;
+        }
+        public SignalType type() { return SignalType.DEMAND; }
+    }
+    public static final class Error<E> implements Signal {
         public final E error;
         public Error(E error) {
             this.error = error;
         }
+        public SignalType type() { return SignalType.ERROR; }
+    }
+    public static interface Ref {
+        public void tell(Object msg);
+        public void tell(Object msg, Ref sender);
+    }
+    // only messages wrapped in Counted are counted in, and the forwarder
+    // only counts out what it unwraps, so raw tells never skew the depth
+    private static final class Counted {
+        private final Object msg;
+        public Counted(Object msg) {
+            this.msg = msg;
+        }
+    }
+    private static final class ActorRefWrapper implements Ref {
+        private final ActorRef actor;
+        private final QueueDepth depth;
+        public ActorRefWrapper(ActorRef actor, QueueDepth depth) {
+            this.actor = actor;
+            this.depth = depth;
+        }
+        @Override
+        public void tell(Object msg) {
+            actor.tell(counted(msg));
+        }
+        @Override
+        public void tell(Object msg, Ref sender) {
+            if (sender instanceof ActorRefWrapper) {
+                actor.tell(counted(msg), ((ActorRefWrapper) sender).actor);
+            } else {
+                actor.tell(counted(msg));
+            }
+        }
+        private Object counted(Object msg) {
+            if (depth == null || msg instanceof PoisonPill) {
+                return msg;
+            }
+            depth.pending.incrementAndGet();
+            return new Counted(msg);
+        }
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof ActorRefWrapper) && actor.equals(((ActorRefWrapper) o).actor);
+        }
+        @Override
+        public int hashCode() {
+            return actor.hashCode();
+        }
     }
     private static class ForwarderActor extends UntypedActor {
         private final Forward forward;
-        public ForwarderActor(Forward forward) {
+        private final QueueDepth depth;
+        private Ref selfRef;
+        private ActorRef lastSender;
+        private Ref lastSenderRef;
+        public ForwarderActor(Forward forward, QueueDepth depth) {
             this.forward = forward;
+            this.depth = depth;
+        }
+        @Override
+        public void preStart() {
+            if (depth != null) {
+                AkkaBackend.mailboxes.put(self(), depth);
+            }
+        }
+        @Override
+        public void postStop() {
+            if (depth != null) {
+                AkkaBackend.mailboxes.remove(self());
+            }
+            stopped(forward);
         }
         @Override
         public void onReceive(Object o) throws Exception {
-            forward.onReceive(o, sender(), self());
+            Object msg = o;
+            if (o instanceof Counted) {
+                depth.pending.decrementAndGet();
+                msg = ((Counted) o).msg;
+            }
+            if (selfRef == null) {
+                selfRef = new ActorRefWrapper(self(), depth);
+            }
+            if (sender() != lastSender) {
+                lastSender = sender();
+                lastSenderRef = new ActorRefWrapper(lastSender, depth == null ? null : AkkaBackend.mailboxes.get(lastSender));
+            }
+            deliver(forward, msg, lastSenderRef, selfRef);
         }
 
     }
-    public static interface Forward {
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception;
-    }
-    public static abstract class Iteratee<I, O> implements Forward {
-        protected Promise<O> promise = new Promise<O>();
-        public void done(O result, ActorRef sender, ActorRef self) {
-            promise.apply((O) result);
-            sender.tell(Done.INSTANCE, self);
-            self.tell(PoisonPill.getInstance());
+    private static final ConcurrentHashMap<Ref, ActorRef> proxies = new ConcurrentHashMap<Ref, ActorRef>();
+    private static final ConcurrentHashMap<ActorRef, Ref> proxied = new ConcurrentHashMap<ActorRef, Ref>();
+    private static class RefProxyActor extends UntypedActor {
+        private final Ref target;
+        public RefProxyActor(Ref target) {
+            this.target = target;
         }
-        public Promise<O> getAsyncResult() {
-            return promise;
+        @Override
+        public void onReceive(Object o) throws Exception {
+            target.tell(o, refOf(sender()));
         }
-        public static <T> Iteratee<T, Unit> foreach(Function<T, Unit> func) {
-            return new ForeachIteratee<T>(func);
+    }
+    static ActorRef actorRefOf(final Ref ref) {
+        if (ref instanceof ActorRefWrapper) {
+            return ((ActorRefWrapper) ref).actor;
         }
-        public static <T> Iteratee<byte[], Unit> toStream(OutputStream os) {
-            return new OutputStreamIteratee(os);
+        ActorRef proxy = proxies.get(ref);
+        if (proxy == null) {
+            proxy = system().actorOf(new Props().withCreator(new UntypedActorFactory() {
+                public Actor create() {
+                    return new RefProxyActor(ref);
+                }
+            }));
+            ActorRef existing = proxies.putIfAbsent(ref, proxy);
+            if (existing != null) {
+                system().stop(proxy);
+                return existing;
+            }
+            proxied.put(proxy, ref);
         }
-        public static <T> Iteratee<T, Unit> ignore() {
-            return new IgnoreIteratee<T>();
+        return proxy;
+    }
+    static Ref refOf(ActorRef actor) {
+        Ref ref = proxied.get(actor);
+        if (ref != null) {
+            return ref;
         }
-        public static <T> Iteratee<T, Option<T>> head() {
-            return new HeadIteratee<T>();
+        return new ActorRefWrapper(actor, AkkaBackend.mailboxes.isEmpty() ? null : AkkaBackend.mailboxes.get(actor));
+    }
+    static void releaseProxy(Ref ref) {
+        ActorRef proxy = proxies.remove(ref);
+        if (proxy != null) {
+            proxied.remove(proxy);
+            system().stop(proxy);
         }
     }
-    public static class OutputStreamIteratee extends Iteratee<byte[], Unit> {
-        public final OutputStream stream;
-
-        public OutputStreamIteratee(OutputStream stream) {
-            this.stream = stream;
+    // stages written against ActorRefs remember the refs they had proxied,
+    // and release them once stopped, however they were stopped
+    static interface Proxying {
+        void releaseProxies();
+    }
+    private static ActorRef proxyOf(Ref ref, List<Ref> owned) {
+        ActorRef actor = actorRefOf(ref);
+        if (!(ref instanceof ActorRefWrapper) && !owned.contains(ref)) {
+            owned.add(ref);
         }
-
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
-            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                Elem<byte[]> el = (Elem<byte[]>) e;
-                for (byte[] s : el.get()) {
-                    if (s != null) {
-                        try {
-                            stream.write(s);
-                        } catch (Exception ex) { ex.printStackTrace(); }
-                    }
-                }
-                sender.tell(Cont.INSTANCE, self);
-            }
-            for (EOF e : F.caseClassOf(EOF.class, msg)) {
-                stream.flush();
-                stream.close();
-                done(Unit.unit(), sender, self);
-            }
+        return actor;
+    }
+    private static void releaseProxies(List<Ref> owned) {
+        for (Ref ref : owned) {
+            releaseProxy(ref);
         }
+        owned.clear();
     }
-    public static class HeadIteratee<T> extends Iteratee<T, Option<T>> {
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
-            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                for(Object o : e.get()) {
-                    Option<T> opt = Option.apply((T) o);
-                    done(opt, sender, self);
-                }
-            }
-            for (EOF e : F.caseClassOf(EOF.class, msg)) {
-                Option<T> opt = Option.none();
-                done(opt, sender, self);
-            }
+    private static void stopped(Forward forward) {
+        if (forward instanceof Proxying) {
+            ((Proxying) forward).releaseProxies();
         }
     }
-    public static class IgnoreIteratee<T> extends Iteratee<T, Unit> {
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
-            for (EOF e : F.caseClassOf(EOF.class, msg)) {
-                done(Unit.unit(), sender, self);
-            }
+    private static final class Envelope {
+        private final Object msg;
+        private final Ref sender;
+        public Envelope(Object msg, Ref sender) {
+            this.msg = msg;
+            this.sender = sender;
         }
     }
-    public static abstract class Enumerator<I> implements Forward {
-
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
-            for (Run run : F.caseClassOf(Run.class, msg)) {
-                sendNext(msg, sender, self);
+    private static final Ref noSender = new Ref() {
+        @Override
+        public void tell(Object msg) {}
+        @Override
+        public void tell(Object msg, Ref sender) {}
+    };
+    private static final class MailboxRef implements Ref, Runnable {
+        private final Forward forward;
+        private final Executor executor;
+        private final int throughput;
+        private final AtomicInteger pending;
+        private final ConcurrentLinkedQueue<Envelope> mailbox = new ConcurrentLinkedQueue<Envelope>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean stopped = false;
+        public MailboxRef(Forward forward, Executor executor, int throughput, AtomicInteger pending) {
+            this.forward = forward;
+            this.executor = executor;
+            this.throughput = throughput;
+            this.pending = pending;
+        }
+        @Override
+        public void tell(Object msg) {
+            tell(msg, noSender);
+        }
+        @Override
+        public void tell(Object msg, Ref sender) {
+            if (stopped) {
+                return;
             }
-            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
-                sendNext(msg, sender, self);
+            pending.incrementAndGet();
+            mailbox.offer(new Envelope(msg, sender == null ? noSender : sender));
+            if (stopped) {
+                drain();
             }
-            for (Done done : F.caseClassOf(Done.class, msg)) {
-                sender.tell(PoisonPill.getInstance(), self);
-                self.tell(PoisonPill.getInstance());
+            schedule();
+        }
+        private void schedule() {
+            if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
             }
-            for (Error err : F.caseClassOf(Error.class, msg)) {
-                sender.tell(PoisonPill.getInstance(), self);
-                System.err.println(err.error);
-                self.tell(PoisonPill.getInstance());
+        }
+        private void drain() {
+            while (mailbox.poll() != null) {
+                pending.decrementAndGet();
             }
         }
-        void sendNext(Object msg, ActorRef sender, ActorRef self) {
-            if (!hasNext()) {
-                sender.tell(EOF.INSTANCE, self);
-            } else {
-                Option<I> optElemnt = next();
-                for (I element : optElemnt) {
-                    sender.tell(new Elem<I>(element), self);
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < throughput && !stopped; i++) {
+                    Envelope envelope = mailbox.poll();
+                    if (envelope == null) {
+                        break;
+                    }
+                    pending.decrementAndGet();
+                    if (envelope.msg instanceof PoisonPill) {
+                        stopped = true;
+                        drain();
+                        stopped(forward);
+                        break;
+                    }
+                    try {
+                        deliver(forward, envelope.msg, envelope.sender, this);
+                    } catch (Exception e) { e.printStackTrace(); }
                 }
-                if (optElemnt.isEmpty()) {
-                    sender.tell(Empty.INSTANCE, self);
+            } finally {
+                scheduled.set(false);
+                if (!stopped) {
+                    schedule();
                 }
             }
         }
-        void setEnumerator(ActorRef ref) {
-            this.enumerator = ref;
+    }
+    private static final class FusedRef implements Ref {
+        private final Forward forward;
+        private final FusedLoop loop;
+        private boolean stopped = false;
+        public FusedRef(Forward forward, FusedLoop loop) {
+            this.forward = forward;
+            this.loop = loop;
         }
-        void setIteratee(ActorRef ref) {
-            this.iteratee = ref;
+        @Override
+        public void tell(Object msg) {
+            loop.post(this, msg, null);
         }
-        public abstract boolean hasNext();
-        public abstract Option<I> next();
-        void onApply() {
-            //System.out.println("on apply from Enumerator");
+        @Override
+        public void tell(Object msg, Ref sender) {
+            loop.post(this, msg, sender);
         }
-        ActorRef enumerator;
-        ActorRef iteratee;
-        public <O> Promise<O> applyOn(Iteratee<I, O> it) {
-            Promise<O> res = it.getAsyncResult();
-            iteratee = system().actorOf(forwarderActorProps(it), UUID.randomUUID().toString());
-            enumerator = system().actorOf(forwarderActorProps(this), UUID.randomUUID().toString());
-            enumerator.tell(Run.INSTANCE, iteratee);
-            return res;
+    }
+    private static final class FusedLoop {
+        private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+        private final FusedRef deadLetters = new FusedRef(null, this);
+        public FusedLoop() {
+            deadLetters.stopped = true;
         }
-        public Enumerator<I> andThen(final Enumerator<I> then) {
-            final Enumerator<I> and = this;
-            return new Enumerator<I>() {
-                @Override
-                public boolean hasNext() {
-                    if (!and.hasNext()) {
-                        return then.hasNext();
-                    } else {
-                        return and.hasNext();
-                    }
+        public Ref ref(Forward forward) {
+            return new FusedRef(forward, this);
+        }
+        void post(FusedRef to, Object msg, Ref sender) {
+            queue.add(to);
+            queue.add(msg);
+            queue.add(sender == null ? deadLetters : sender);
+        }
+        public void run() {
+            while (!queue.isEmpty()) {
+                FusedRef to = (FusedRef) queue.poll();
+                Object msg = queue.poll();
+                Ref sender = (Ref) queue.poll();
+                if (to.stopped) {
+                    continue;
                 }
-                @Override
-                public Option<I> next() {
-                    if (!and.hasNext()) {
-                        return then.next();
-                    } else {
-                        return and.next();
-                    }
+                if (msg instanceof PoisonPill) {
+                    to.stopped = true;
+                    continue;
                 }
-            };
-        }
-        public <O> Enumerator<O> through(Enumeratee<I, O>... enumeratees) {
-            return new DecoratedEnumerator<O>(this, enumeratees);
+                try {
+                    deliver(to.forward, msg, sender, to);
+                } catch (Exception e) { e.printStackTrace(); }
+            }
         }
-        public static <T> Enumerator<T> interleave(Enumerator<T>... enumerators) {
-            return new InterleavedEnumerators<T>(enumerators);
+    }
+    public static interface Forward {
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception;
+    }
+    // failures travel downstream, so they are routed here rather than
+    // through the ERROR case every stage uses for upstream cancellation
+    private static void deliver(Forward forward, Object msg, Ref sender, Ref self) throws Exception {
+        if (msg instanceof Failed) {
+            Throwable error = ((Failed) msg).error;
+            if (forward instanceof Iteratee) {
+                ((Iteratee) forward).teardown(error, sender, self);
+                return;
+            }
+            if (forward instanceof Enumeratee) {
+                ((Enumeratee) forward).failed(error, self);
+                return;
+            }
         }
-        public static <T> Enumerator<T> of(T... args) {
-            return new IterableEnumerator(Arrays.asList(args));
+        forward.onReceive(msg, sender, self);
+    }
+    private static final class Failed {
+        private final Throwable error;
+        public Failed(Throwable error) {
+            this.error = error;
         }
-        public static <T> Enumerator<T> of(Iterable<T> iterable) {
-            return new IterableEnumerator(iterable);
+    }
+    public static abstract class Iteratee<I, O> implements Forward {
+        protected Promise<O> promise = new Promise<O>();
+        int window = 0;
+        boolean sync = false;
+        private int consumed = 0;
+        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            onReceive(msg, refOf(sender), refOf(self));
         }
-        public static <T> Enumerator<byte[]> fromStream(InputStream is, int chunkSize) {
-            return new FromInputStreamEnumerator(is, chunkSize);
+        boolean isLegacy() {
+            return false;
         }
-        public static <T> Enumerator<byte[]> fromFile(File f, int chunkSize) {
-            try {
-                return new FromInputStreamEnumerator(new FileInputStream(f), chunkSize);
-            } catch (FileNotFoundException ex) {
-                throw new RuntimeException(ex);
+        protected void cont(int count, Ref sender, Ref self) {
+            if (window <= 0) {
+                sender.tell(Cont.INSTANCE, self);
+                return;
             }
-        }
-        public static <T> Enumerator<byte[]> fromFile(File f) {
-            try {
-                return new FromInputStreamEnumerator(new FileInputStream(f), 2048);
-            } catch (FileNotFoundException ex) {
-                throw new RuntimeException(ex);
+            consumed += count;
+            if (consumed >= Math.max(1, window / 2)) {
+                sender.tell(new Demand(consumed), self);
+                consumed = 0;
             }
         }
-        public static <T> Enumerator<String> fromFileLines(File f) {
-            return new FromFileLinesEnumerator(f);
+        public void done(O result, Ref sender, Ref self) {
+            promise.apply((O) result);
+            sender.tell(Done.INSTANCE, self);
+            self.tell(PoisonPill.getInstance());
         }
-        public static <T> PushEnumerator<T> unicast(Class<T> clazz) {
-            return new PushEnumerator<T>();
+        public void done(O result, ActorRef sender, ActorRef self) {
+            done(result, refOf(sender), refOf(self));
         }
-        public static <T> PushEnumerator<T> generate(long every, TimeUnit unit, final Function<Unit, Option<T>> callback) {
-            return new CallbackPushEnumerator<T>(every, unit, callback);
+        public void fail(Throwable error, Ref sender, Ref self) {
+            promise.failure(error);
+            sender.tell(Done.INSTANCE, self);
+            self.tell(PoisonPill.getInstance());
         }
-        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator) {
-            return new HubEnumerator(enumerator, true);
+        // the sink is stopped before its promise fails, so nothing
+        // pushed after a timeout is observed can still reach it
+        void teardown(Throwable error, Ref sender, Ref self) {
+            aborted(error);
+            sender.tell(Done.INSTANCE, self);
+            self.tell(PoisonPill.getInstance());
+            promise.failure(error);
         }
-        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator, boolean start) {
-            return new HubEnumerator(enumerator, start);
+        void aborted(Throwable cause) {
         }
-        public static <T> Enumerator<T> eof() {
-            return new Enumerator<T>() {
+        public Promise<O> getAsyncResult() {
+            return promise;
+        }
+        public static <T> Iteratee<T, Unit> foreach(Function<T, Unit> func) {
+            return new ForeachIteratee<T>(func);
+        }
+        public static <T> Iteratee<byte[], Unit> toStream(OutputStream os) {
+            return new OutputStreamIteratee(os);
+        }
+        public static Iteratee<ByteBuffer, Long> toChannel(GatheringByteChannel channel) {
+            return new ChannelIteratee(channel, 1024 * 1024, 100L, false);
+        }
+        public static Iteratee<ByteBuffer, Long> toChannel(GatheringByteChannel channel, long flushBytes, long flushMillis, boolean fsync) {
+            return new ChannelIteratee(channel, flushBytes, flushMillis, fsync);
+        }
+        public static Iteratee<ByteBuffer, List<File>> toRollingFiles(File directory, String prefix, long segmentBytes, long segmentMillis) {
+            return new RollingFileIteratee(directory, prefix, segmentBytes, segmentMillis, 1024 * 1024, 100L, false);
+        }
+        public static Iteratee<ByteBuffer, List<File>> toRollingFiles(File directory, String prefix, long segmentBytes, long segmentMillis,
+                long flushBytes, long flushMillis, boolean fsync) {
+            return new RollingFileIteratee(directory, prefix, segmentBytes, segmentMillis, flushBytes, flushMillis, fsync);
+        }
+        public static Iteratee<ByteBuffer, Long> toFile(File f) {
+            return toFile(f, 1024 * 1024, 100L, false);
+        }
+        public static Iteratee<ByteBuffer, Long> toFile(File f, long flushBytes, long flushMillis, boolean fsync) {
+            try {
+                return new ChannelIteratee(new FileOutputStream(f).getChannel(), flushBytes, flushMillis, fsync);
+            } catch (FileNotFoundException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        public static <I, O> Iteratee<I, List<O>> partition(int partitions, Function<I, ?> key, Function<Enumerator<I>, Promise<O>> pipeline) {
+            return new PartitionIteratee<I, O>(partitions, 1024, key, pipeline);
+        }
+        public static <I, O> Iteratee<I, List<O>> partition(int partitions, int bufferSize, Function<I, ?> key, Function<Enumerator<I>, Promise<O>> pipeline) {
+            return new PartitionIteratee<I, O>(partitions, bufferSize, key, pipeline);
+        }
+        public static <T> Iteratee<T, Unit> ignore() {
+            return new IgnoreIteratee<T>();
+        }
+        public static <T> Iteratee<T, Option<T>> head() {
+            return new HeadIteratee<T>();
+        }
+        public static Iteratee<int[], Long> sumInts() {
+            return new ChunkIteratee<int[], Long>() {
+                private long sum = 0L;
                 @Override
-                public boolean hasNext() {
-                    return false;
+                void onChunk(int[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        sum += chunk[i];
+                    }
                 }
                 @Override
-                public Option<T> next() {
-                    return Option.none();
+                Long result() {
+                    return sum;
                 }
             };
         }
-        public static <T> Enumerator<T> interleave(final Class<T> clazz, final Enumerator<T>... enumerators) {
-            final PushEnumerator<T> push = Enumerator.unicast(clazz);
-            for (Enumerator<T> enumerator : enumerators) {
-                enumerator.applyOn(Iteratee.foreach(new Function<T, Unit>() {
-                    @Override
-                    public Unit apply(T value) {
-                        push.push(value);
-                        return Unit.unit();
+        public static Iteratee<int[], Option<Integer>> minInts() {
+            return new ChunkIteratee<int[], Option<Integer>>() {
+                private boolean seen = false;
+                private int min = Integer.MAX_VALUE;
+                @Override
+                void onChunk(int[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        min = Math.min(min, chunk[i]);
                     }
-                }));
-            }
-            return push;
+                    seen = seen || chunk.length > 0;
+                }
+                @Override
+                Option<Integer> result() {
+                    return seen ? Option.some(min) : Option.<Integer>none();
+                }
+            };
+        }
+        public static Iteratee<int[], Option<Integer>> maxInts() {
+            return new ChunkIteratee<int[], Option<Integer>>() {
+                private boolean seen = false;
+                private int max = Integer.MIN_VALUE;
+                @Override
+                void onChunk(int[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        max = Math.max(max, chunk[i]);
+                    }
+                    seen = seen || chunk.length > 0;
+                }
+                @Override
+                Option<Integer> result() {
+                    return seen ? Option.some(max) : Option.<Integer>none();
+                }
+            };
+        }
+        public static Iteratee<int[], long[]> histogramInts(final int min, final int max, final int buckets) {
+            return new ChunkIteratee<int[], long[]>() {
+                private final long[] counts = new long[buckets];
+                private final double width = ((double) max - min) / buckets;
+                @Override
+                void onChunk(int[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        counts[bucket((chunk[i] - (double) min) / width, buckets)]++;
+                    }
+                }
+                @Override
+                long[] result() {
+                    return counts;
+                }
+            };
+        }
+        public static Iteratee<long[], Long> sumLongs() {
+            return new ChunkIteratee<long[], Long>() {
+                private long sum = 0L;
+                @Override
+                void onChunk(long[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        sum += chunk[i];
+                    }
+                }
+                @Override
+                Long result() {
+                    return sum;
+                }
+            };
+        }
+        public static Iteratee<long[], Option<Long>> minLongs() {
+            return new ChunkIteratee<long[], Option<Long>>() {
+                private boolean seen = false;
+                private long min = Long.MAX_VALUE;
+                @Override
+                void onChunk(long[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        min = Math.min(min, chunk[i]);
+                    }
+                    seen = seen || chunk.length > 0;
+                }
+                @Override
+                Option<Long> result() {
+                    return seen ? Option.some(min) : Option.<Long>none();
+                }
+            };
+        }
+        public static Iteratee<long[], Option<Long>> maxLongs() {
+            return new ChunkIteratee<long[], Option<Long>>() {
+                private boolean seen = false;
+                private long max = Long.MIN_VALUE;
+                @Override
+                void onChunk(long[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        max = Math.max(max, chunk[i]);
+                    }
+                    seen = seen || chunk.length > 0;
+                }
+                @Override
+                Option<Long> result() {
+                    return seen ? Option.some(max) : Option.<Long>none();
+                }
+            };
+        }
+        public static Iteratee<long[], long[]> histogramLongs(final long min, final long max, final int buckets) {
+            return new ChunkIteratee<long[], long[]>() {
+                private final long[] counts = new long[buckets];
+                private final double width = ((double) max - min) / buckets;
+                @Override
+                void onChunk(long[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        counts[bucket((chunk[i] - (double) min) / width, buckets)]++;
+                    }
+                }
+                @Override
+                long[] result() {
+                    return counts;
+                }
+            };
+        }
+        public static Iteratee<double[], Double> sumDoubles() {
+            return new ChunkIteratee<double[], Double>() {
+                private double sum = 0.0;
+                @Override
+                void onChunk(double[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        sum += chunk[i];
+                    }
+                }
+                @Override
+                Double result() {
+                    return sum;
+                }
+            };
+        }
+        public static Iteratee<double[], Option<Double>> minDoubles() {
+            return new ChunkIteratee<double[], Option<Double>>() {
+                private boolean seen = false;
+                private double min = Double.POSITIVE_INFINITY;
+                @Override
+                void onChunk(double[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        min = Math.min(min, chunk[i]);
+                    }
+                    seen = seen || chunk.length > 0;
+                }
+                @Override
+                Option<Double> result() {
+                    return seen ? Option.some(min) : Option.<Double>none();
+                }
+            };
+        }
+        public static Iteratee<double[], Option<Double>> maxDoubles() {
+            return new ChunkIteratee<double[], Option<Double>>() {
+                private boolean seen = false;
+                private double max = Double.NEGATIVE_INFINITY;
+                @Override
+                void onChunk(double[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        max = Math.max(max, chunk[i]);
+                    }
+                    seen = seen || chunk.length > 0;
+                }
+                @Override
+                Option<Double> result() {
+                    return seen ? Option.some(max) : Option.<Double>none();
+                }
+            };
+        }
+        public static Iteratee<double[], long[]> histogramDoubles(final double min, final double max, final int buckets) {
+            return new ChunkIteratee<double[], long[]>() {
+                private final long[] counts = new long[buckets];
+                private final double width = (max - min) / buckets;
+                @Override
+                void onChunk(double[] chunk) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        counts[bucket((chunk[i] - min) / width, buckets)]++;
+                    }
+                }
+                @Override
+                long[] result() {
+                    return counts;
+                }
+            };
         }
     }
-    public static abstract class Enumeratee<I, O> implements Forward {
-        private ActorRef fromEnumerator;
-        private ActorRef toIteratee;
-        private final Function<I, O> tranform;
-        public Enumeratee(Function<I, O> tranform) {
-            this.tranform = tranform;
+    private static abstract class ChunkIteratee<C, O> extends Iteratee<C, O> {
+        abstract void onChunk(C chunk);
+        abstract O result();
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    C chunk = ((Elem<C>) msg).getOrNull();
+                    if (chunk != null) {
+                        onChunk(chunk);
+                    }
+                    cont(1, sender, self);
+                    break;
+                }
+                case ELEMS: {
+                    List<C> chunks = ((Elems<C>) msg).get();
+                    for (int i = 0; i < chunks.size(); i++) {
+                        onChunk(chunks.get(i));
+                    }
+                    cont(chunks.size(), sender, self);
+                    break;
+                }
+                case EOF:
+                    done(result(), sender, self);
+                    break;
+            }
         }
-        public void setToIteratee(ActorRef toIteratee) {
-            this.toIteratee = toIteratee;
+    }
+    private static int bucket(double position, int buckets) {
+        if (position < 0) {
+            return 0;
         }
+        return (int) Math.min(buckets - 1, (long) position);
+    }
+    public static class OutputStreamIteratee extends Iteratee<byte[], Unit> implements Blocking {
+        public final OutputStream stream;
 
-        public void setFromEnumerator(ActorRef fromEnumerator) {
-            this.fromEnumerator = fromEnumerator;
+        public OutputStreamIteratee(OutputStream stream) {
+            this.stream = stream;
         }
 
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    byte[] s = ((Elem<byte[]>) msg).getOrNull();
+                    if (s != null) {
+                        try {
+                            stream.write(s);
+                        } catch (IOException ex) {
+                            close();
+                            fail(ex, sender, self);
+                            return;
+                        }
+                    }
+                    cont(1, sender, self);
+                    break;
+                }
+                case ELEMS: {
+                    List<byte[]> el = ((Elems<byte[]>) msg).get();
+                    try {
+                        for (int i = 0; i < el.size(); i++) {
+                            stream.write(el.get(i));
+                        }
+                    } catch (IOException ex) {
+                        close();
+                        fail(ex, sender, self);
+                        return;
+                    }
+                    cont(el.size(), sender, self);
+                    break;
+                }
+                case EOF:
+                    try {
+                        stream.flush();
+                        stream.close();
+                    } catch (IOException ex) {
+                        fail(ex, sender, self);
+                        return;
+                    }
+                    done(Unit.unit(), sender, self);
+                    break;
+            }
+        }
         @Override
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
-            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                Elem<I> el = (Elem<I>) e;
-                for (I elem : el.get()) {
-                    O out = tranform.apply(elem);
-                    if (out != null)
-                        toIteratee.tell(new Elem<O>(out), self);
+        void aborted(Throwable cause) {
+            close();
+        }
+        private void close() {
+            try {
+                stream.close();
+            } catch (IOException ex) { ex.printStackTrace(); }
+        }
+    }
+    static abstract class BatchingChannelIteratee<O> extends Iteratee<ByteBuffer, O> implements Blocking, Retaining {
+        private static final Object FLUSH = new Object();
+        private static final int MAX_WRITE_STALLS = 16;
+        private final long flushBytes;
+        private final long flushMillis;
+        private final boolean fsync;
+        private final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+        private long pendingBytes = 0L;
+        private long lastFlush = System.currentTimeMillis();
+        private Cancellable ticker;
+
+        BatchingChannelIteratee(long flushBytes, long flushMillis, boolean fsync) {
+            this.flushBytes = flushBytes;
+            this.flushMillis = flushMillis;
+            this.fsync = fsync;
+        }
+
+        abstract GatheringByteChannel channel() throws IOException;
+        abstract void written(long bytes) throws IOException;
+        abstract void onTick() throws IOException;
+        abstract O finish() throws IOException;
+        abstract void abort();
+
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            if (ticker == null && flushMillis > 0L && !sync) {
+                final Ref me = self;
+                ticker = backend().schedule(flushMillis, flushMillis, TimeUnit.MILLISECONDS, new Runnable() {
+                    @Override
+                    public void run() {
+                        me.tell(FLUSH);
+                    }
+                });
+            }
+            try {
+                switch (typeOf(msg)) {
+                    case ELEM: {
+                        add(((Elem<ByteBuffer>) msg).getOrNull());
+                        flushIfNeeded();
+                        cont(1, sender, self);
+                        break;
+                    }
+                    case ELEMS: {
+                        List<ByteBuffer> el = ((Elems<ByteBuffer>) msg).get();
+                        for (int i = 0; i < el.size(); i++) {
+                            add(el.get(i));
+                        }
+                        flushIfNeeded();
+                        cont(el.size(), sender, self);
+                        break;
+                    }
+                    case EOF:
+                        flush();
+                        cancelTicker();
+                        done(finish(), sender, self);
+                        break;
+                    case OTHER:
+                        if (msg == FLUSH) {
+                            if (pendingBytes > 0L && System.currentTimeMillis() - lastFlush >= flushMillis) {
+                                flush();
+                            }
+                            onTick();
+                        }
+                        break;
                 }
+            } catch (Exception ex) {
+                aborted(ex);
+                fail(ex, sender, self);
             }
-            for (EOF eof : F.caseClassOf(EOF.class, msg)) {
-                toIteratee.tell(eof, self);
+        }
+        @Override
+        void aborted(Throwable cause) {
+            cancelTicker();
+            pending.clear();
+            pendingBytes = 0L;
+            abort();
+        }
+        long pendingBytes() {
+            return pendingBytes;
+        }
+        private void add(ByteBuffer buffer) {
+            if (buffer != null && buffer.hasRemaining()) {
+                pending.add(buffer);
+                pendingBytes += buffer.remaining();
             }
-            for (Empty empty : F.caseClassOf(Empty.class, msg)) {
-                toIteratee.tell(empty, self);
+        }
+        private void flushIfNeeded() throws IOException {
+            if (pendingBytes >= flushBytes
+                    || (flushMillis > 0L && System.currentTimeMillis() - lastFlush >= flushMillis)) {
+                flush();
             }
-            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
-                fromEnumerator.tell(cont, self);
+        }
+        void flush() throws IOException {
+            lastFlush = System.currentTimeMillis();
+            if (pending.isEmpty()) {
+                return;
             }
-            for (Done done : F.caseClassOf(Done.class, msg)) {
-                fromEnumerator.tell(done, self);
-                self.tell(PoisonPill.getInstance());
+            ByteBuffer[] buffers = pending.toArray(new ByteBuffer[pending.size()]);
+            GatheringByteChannel channel = null;
+            int offset = 0;
+            int stalls = 0;
+            while (offset < buffers.length) {
+                channel = channel();
+                long n = write(channel, buffers, offset, writable());
+                if (n > 0L) {
+                    stalls = 0;
+                    written(n);
+                } else if (++stalls > MAX_WRITE_STALLS) {
+                    throw new IOException("Channel accepted no bytes after " + MAX_WRITE_STALLS + " attempts");
+                } else {
+                    pause(1L << Math.min(stalls, 6));
+                }
+                while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                    offset++;
+                }
             }
-            for (Error error : F.caseClassOf(Error.class, msg)) {
-                fromEnumerator.tell(error, self);
-                self.tell(PoisonPill.getInstance());
+            if (fsync && channel instanceof FileChannel && channel.isOpen()) {
+                ((FileChannel) channel).force(false);
             }
+            pending.clear();
+            pendingBytes = 0L;
         }
-        public static <I,O> Enumeratee<I,O> map(Function<I,O> transform) {
-            return new MapEnumeratee<I, O>(transform);
+        long writable() {
+            return Long.MAX_VALUE;
         }
-        public static <I,O> Enumeratee<I,I> collect(Function<I,Option<I>> transform) {
-            return new CollectEnumeratee<I>(transform);
+        // writes at most room bytes, cutting the buffer that crosses the limit
+        private static long write(GatheringByteChannel channel, ByteBuffer[] buffers, int offset, long room) throws IOException {
+            int end = offset;
+            long span = 0L;
+            while (end < buffers.length && span + buffers[end].remaining() <= room) {
+                span += buffers[end++].remaining();
+            }
+            if (end == buffers.length || span == room) {
+                return channel.write(buffers, offset, end - offset);
+            }
+            ByteBuffer split = buffers[end];
+            int limit = split.limit();
+            split.limit(split.position() + (int) (room - span));
+            try {
+                return channel.write(buffers, offset, end + 1 - offset);
+            } finally {
+                split.limit(limit);
+            }
+        }
+        private void cancelTicker() {
+            if (ticker != null) {
+                ticker.cancel();
+            }
+        }
+        private static void pause(long millis) throws IOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the channel");
+            }
         }
     }
+    public static class ChannelIteratee extends BatchingChannelIteratee<Long> {
+        private final GatheringByteChannel channel;
+        private long written = 0L;
 
-    /**************************************************************************/
-    /**************************************************************************/
-    /**************************************************************************/
+        public ChannelIteratee(GatheringByteChannel channel, long flushBytes, long flushMillis, boolean fsync) {
+            super(flushBytes, flushMillis, fsync);
+            this.channel = channel;
+        }
+        @Override
+        GatheringByteChannel channel() {
+            return channel;
+        }
+        @Override
+        void written(long bytes) {
+            written += bytes;
+        }
+        @Override
+        void onTick() {
+        }
+        @Override
+        Long finish() throws IOException {
+            channel.close();
+            return written;
+        }
+        @Override
+        void abort() {
+            try {
+                channel.close();
+            } catch (IOException ex) { ex.printStackTrace(); }
+        }
+    }
+    public static class RollingFileIteratee extends BatchingChannelIteratee<List<File>> {
+        private static ExecutorService allocator;
+        private final File directory;
+        private final String prefix;
+        private final long segmentBytes;
+        private final long segmentMillis;
+        private final boolean fsync;
+        private final List<File> segments = new ArrayList<File>();
+        private int index = 0;
+        private Segment current;
+        private Future<Segment> next;
 
-    private static class DecoratedEnumerator<I> extends Enumerator<I> {
-        private final Enumerator<?> fromEnumerator;
-        private final List<Function> functions = new CopyOnWriteArrayList<Function>();
-        private Iteratee<I, ?> toIteratee;
-        private final Enumeratee throughEnumeratee = Enumeratee.map(new Function<Object, Object>() {
-            @Override
-            public Object apply(Object t) {
-                return applyTransforms(t);
+        public RollingFileIteratee(File directory, String prefix, long segmentBytes, long segmentMillis,
+                long flushBytes, long flushMillis, boolean fsync) {
+            super(Math.min(flushBytes, segmentBytes), tickMillis(flushMillis, segmentMillis), fsync);
+            this.directory = directory;
+            this.prefix = prefix;
+            this.segmentBytes = segmentBytes;
+            this.segmentMillis = segmentMillis;
+            this.fsync = fsync;
+        }
+        @Override
+        GatheringByteChannel channel() throws IOException {
+            if (current == null) {
+                current = next == null ? allocate(index++) : await(next);
+                current.opened = System.currentTimeMillis();
+                next = preallocate(index++);
             }
-        });
-        DecoratedEnumerator(Enumerator<?> fromEnumerator,
-                            Enumeratee<?, I>... throughEnumeratees) {
-            this.fromEnumerator = fromEnumerator;
-            if (throughEnumeratees != null && throughEnumeratees.length > 0) {
-                for (Enumeratee enumeratee : throughEnumeratees) {
-                    functions.add(enumeratee.tranform);
-                }
-            } else {
-                throw new RuntimeException("You have to provide at least one enumeratee");
+            return current.channel;
+        }
+        @Override
+        long writable() {
+            return segmentBytes - current.written;
+        }
+        @Override
+        void written(long bytes) throws IOException {
+            current.written += bytes;
+            if (current.written >= segmentBytes || expired()) {
+                roll();
             }
         }
-
         @Override
-        public <O> Promise<O> applyOn(Iteratee<I, O> it) {
-            toIteratee = it;
-            Promise<O> res = it.getAsyncResult();
-            iteratee = system().actorOf(forwarderActorProps(toIteratee), UUID.randomUUID().toString());
-            ActorRef enumeratee = system().actorOf(forwarderActorProps(throughEnumeratee), UUID.randomUUID().toString());
-            enumerator = system().actorOf(forwarderActorProps(fromEnumerator), UUID.randomUUID().toString());
-            fromEnumerator.setEnumerator(enumerator);
-            fromEnumerator.setIteratee(enumeratee);
-            throughEnumeratee.setFromEnumerator(enumerator);
-            throughEnumeratee.setToIteratee(iteratee);
-            fromEnumerator.onApply();
-            enumerator.tell(Run.INSTANCE, enumeratee);
-            return res;
+        void onTick() throws IOException {
+            if (expired()) {
+                flush();
+                roll();
+            }
+        }
+        private boolean expired() {
+            return current != null && segmentMillis > 0L
+                && System.currentTimeMillis() - current.opened >= segmentMillis;
+        }
+        private static long tickMillis(long flushMillis, long segmentMillis) {
+            if (flushMillis <= 0L || segmentMillis <= 0L) {
+                return Math.max(flushMillis, segmentMillis);
+            }
+            return Math.min(flushMillis, segmentMillis);
+        }
+        @Override
+        List<File> finish() throws IOException {
+            if (current != null) {
+                roll();
+            }
+            if (next != null) {
+                await(next).discard();
+                next = null;
+            }
+            return Collections.unmodifiableList(segments);
+        }
+        @Override
+        void abort() {
+            try {
+                if (current != null) {
+                    current.close(false);
+                }
+                if (next != null) {
+                    await(next).discard();
+                }
+            } catch (IOException ex) { ex.printStackTrace(); }
+        }
+        private void roll() throws IOException {
+            if (current == null) {
+                return;
+            }
+            current.close(fsync);
+            segments.add(current.file);
+            current = null;
+        }
+        private Segment allocate(int segment) throws IOException {
+            File file = new File(directory, String.format("%s-%06d.log", prefix, segment));
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(segmentBytes);
+            return new Segment(file, raf.getChannel());
+        }
+        private Future<Segment> preallocate(final int segment) {
+            return allocator().submit(new Callable<Segment>() {
+                @Override
+                public Segment call() throws Exception {
+                    return allocate(segment);
+                }
+            });
+        }
+        private static Segment await(Future<Segment> future) throws IOException {
+            try {
+                return future.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+        }
+        private static synchronized ExecutorService allocator() {
+            if (allocator == null) {
+                allocator = Executors.newSingleThreadExecutor(daemonThreads("iteratees-segments"));
+            }
+            return allocator;
+        }
+        private static class Segment {
+            private final File file;
+            private final FileChannel channel;
+            private long opened;
+            private long written = 0L;
+            public Segment(File file, FileChannel channel) {
+                this.file = file;
+                this.channel = channel;
+            }
+            void close(boolean sync) throws IOException {
+                channel.truncate(written);
+                if (sync) {
+                    channel.force(true);
+                }
+                channel.close();
+            }
+            void discard() throws IOException {
+                channel.close();
+                file.delete();
+            }
+        }
+    }
+    public static class HeadIteratee<T> extends Iteratee<T, Option<T>> implements Retaining {
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    T elem = ((Elem<T>) msg).getOrNull();
+                    if (elem != null) {
+                        done(Option.some(elem), sender, self);
+                    }
+                    break;
+                }
+                case ELEMS: {
+                    List<T> el = ((Elems<T>) msg).get();
+                    if (!el.isEmpty()) {
+                        done(Option.some(el.get(0)), sender, self);
+                    }
+                    break;
+                }
+                case EOF: {
+                    Option<T> opt = Option.none();
+                    done(opt, sender, self);
+                    break;
+                }
+            }
+        }
+    }
+    public static class IgnoreIteratee<T> extends Iteratee<T, Unit> {
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            if (msg == EOF.INSTANCE) {
+                done(Unit.unit(), sender, self);
+            }
+        }
+    }
+    public static abstract class ActorIteratee<I, O> extends Iteratee<I, O> implements Proxying {
+        private final List<Ref> proxiedRefs = new ArrayList<Ref>();
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            onReceive(msg, proxyOf(sender, proxiedRefs), proxyOf(self, proxiedRefs));
+        }
+        @Override
+        public abstract void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception;
+        @Override
+        boolean isLegacy() {
+            return true;
+        }
+        @Override
+        public void releaseProxies() {
+            Iteratees.releaseProxies(proxiedRefs);
+        }
+    }
+    public static abstract class ActorEnumeratee<I, O> extends Enumeratee<I, O> implements Proxying {
+        private final List<Ref> proxiedRefs = new ArrayList<Ref>();
+        public ActorEnumeratee() {
+            super(null);
+        }
+        @Override
+        public void setToIteratee(Ref toIteratee) {
+            super.setToIteratee(toIteratee);
+            setToIteratee(proxyOf(toIteratee, proxiedRefs));
+        }
+        @Override
+        public void setFromEnumerator(Ref fromEnumerator) {
+            super.setFromEnumerator(fromEnumerator);
+            setFromEnumerator(proxyOf(fromEnumerator, proxiedRefs));
+        }
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            onReceive(msg, proxyOf(sender, proxiedRefs), proxyOf(self, proxiedRefs));
+        }
+        @Override
+        public abstract void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception;
+        @Override
+        boolean isLegacy() {
+            return true;
+        }
+        @Override
+        public void releaseProxies() {
+            Iteratees.releaseProxies(proxiedRefs);
+        }
+    }
+    public static abstract class Enumerator<I> implements Forward {
+
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            switch (typeOf(msg)) {
+                case RUN:
+                    if (window > 0) {
+                        drain(sender, self);
+                    } else {
+                        sendNext(msg, sender, self);
+                    }
+                    break;
+                case CONT:
+                    if (window > 0) {
+                        credits++;
+                        drain(sender, self);
+                    } else {
+                        sendNext(msg, sender, self);
+                    }
+                    break;
+                case DEMAND:
+                    credits += ((Demand) msg).n;
+                    drain(sender, self);
+                    break;
+                case DONE:
+                    onDone();
+                    sender.tell(PoisonPill.getInstance(), self);
+                    self.tell(PoisonPill.getInstance());
+                    break;
+                case ERROR:
+                    onDone();
+                    sender.tell(PoisonPill.getInstance(), self);
+                    System.err.println(((Error) msg).error);
+                    self.tell(PoisonPill.getInstance());
+                    break;
+            }
+        }
+        void sendNext(Object msg, Ref sender, Ref self) {
+            if (failed(sender, self)) {
+                return;
+            }
+            if (!hasNext()) {
+                sender.tell(EOF.INSTANCE, self);
+            } else if (batchSize > 1) {
+                List<I> batch = nextBatch(batchSize);
+                if (!batch.isEmpty()) {
+                    sender.tell(new Elems<I>(batch), self);
+                }
+                if (failed(sender, self) || !batch.isEmpty()) {
+                    return;
+                }
+                if (!hasNext()) {
+                    sender.tell(EOF.INSTANCE, self);
+                } else {
+                    sender.tell(Empty.INSTANCE, self);
+                }
+            } else {
+                Option<I> optElemnt = next();
+                if (failed(sender, self)) {
+                    return;
+                }
+                if (optElemnt.isDefined()) {
+                    sender.tell(new Elem<I>(optElemnt.get()), self);
+                } else if (!hasNext()) {
+                    sender.tell(EOF.INSTANCE, self);
+                } else {
+                    sender.tell(Empty.INSTANCE, self);
+                }
+            }
+        }
+        void drain(Ref sender, Ref self) {
+            if (failed(sender, self)) {
+                return;
+            }
+            while (credits > 0 && !eof) {
+                if (!hasNext()) {
+                    eof = true;
+                    sender.tell(EOF.INSTANCE, self);
+                } else if (batchSize > 1) {
+                    List<I> batch = nextBatch(Math.min(credits, batchSize));
+                    if (!batch.isEmpty()) {
+                        credits -= batch.size();
+                        sender.tell(new Elems<I>(batch), self);
+                    }
+                    if (failed(sender, self) || (batch.isEmpty() && hasNext())) {
+                        return;
+                    }
+                } else {
+                    Option<I> optElemnt = next();
+                    if (failed(sender, self)) {
+                        return;
+                    }
+                    if (optElemnt.isEmpty()) {
+                        if (hasNext()) {
+                            return;
+                        }
+                    } else {
+                        credits--;
+                        sender.tell(new Elem<I>(optElemnt.get()), self);
+                    }
+                }
+            }
+        }
+        void setEnumerator(Ref ref) {
+            this.enumerator = ref;
+        }
+        void setIteratee(Ref ref) {
+            this.iteratee = ref;
+        }
+        void setWindow(int window) {
+            this.window = window;
+        }
+        void fail(Throwable error) {
+            failure = error;
+        }
+        private boolean failed(Ref sender, Ref self) {
+            if (failure == null) {
+                return false;
+            }
+            if (!eof) {
+                eof = true;
+                onDone();
+                sender.tell(new Failed(failure), self);
+                self.tell(PoisonPill.getInstance());
+            }
+            return true;
+        }
+        public abstract boolean hasNext();
+        public abstract Option<I> next();
+        public List<I> nextBatch(int max) {
+            List<I> batch = new ArrayList<I>(Math.min(max, 1024));
+            while (batch.size() < max && hasNext()) {
+                Option<I> opt = next();
+                if (opt.isEmpty()) {
+                    break;
+                }
+                I elem = opt.get();
+                if (elem != null) {
+                    batch.add(elem);
+                }
+            }
+            return batch;
+        }
+        public Enumerator<I> batched(int max) {
+            this.batchSize = Math.max(1, max);
+            return this;
+        }
+        void onApply() {
+            //System.out.println("on apply from Enumerator");
+        }
+        void retainElements() {
+        }
+        void onDone() {
+        }
+        Ref enumerator;
+        Ref iteratee;
+        Ref upstream;
+        int batchSize = 1;
+        int window = 0;
+        private int credits = 0;
+        private boolean eof = false;
+        private Throwable failure;
+        public <O> Promise<O> applyOn(Iteratee<I, O> it) {
+            return applyOn(it, 0);
+        }
+        public <O> Promise<O> applyOn(Iteratee<I, O> it, int window) {
+            Promise<O> res = it.getAsyncResult();
+            setWindow(window);
+            it.window = window;
+            if (it instanceof Retaining) {
+                retainElements();
+            }
+            iteratee = actorOf(it);
+            enumerator = actorOf(this);
+            upstream = enumerator;
+            enumerator.tell(start(window), iteratee);
+            return res;
+        }
+        public <O> Promise<O> applyOn(Iteratee<I, O> it, long timeout, TimeUnit unit) {
+            return applyOn(it, 0, timeout, unit);
+        }
+        public <O> Promise<O> applyOn(Iteratee<I, O> it, int window, final long timeout, final TimeUnit unit) {
+            final Promise<O> res = applyOn(it, window);
+            final Ref sink = iteratee;
+            final Ref tail = upstream;
+            final Timeout expiry = F.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (res.isDone()) {
+                        return;
+                    }
+                    sink.tell(new Failed(new TimeoutException("Pipeline not done within " + timeout + " " + unit)), tail);
+                }
+            }, timeout, unit);
+            res.onRedeem(new Action<Promise<O>>() {
+                @Override
+                public void apply(Promise<O> t) {
+                    expiry.cancel();
+                }
+            });
+            return res;
+        }
+        public <O> Promise<O> applyOnSync(Iteratee<I, O> it) {
+            if (it.isLegacy()) {
+                return applyOn(it);
+            }
+            checkPullBased();
+            Promise<O> res = it.getAsyncResult();
+            it.sync = true;
+            if (it instanceof Retaining) {
+                retainElements();
+            }
+            FusedLoop loop = new FusedLoop();
+            iteratee = loop.ref(it);
+            enumerator = loop.ref(this);
+            enumerator.tell(Run.INSTANCE, iteratee);
+            loop.run();
+            return res;
+        }
+        boolean isPullBased() {
+            return true;
+        }
+        void checkPullBased() {
+            if (!isPullBased()) {
+                throw new UnsupportedOperationException("Only pull based enumerators can be applied synchronously");
+            }
+        }
+        public Enumerator<I> andThen(final Enumerator<I> then) {
+            final Enumerator<I> and = this;
+            return new Enumerator<I>() {
+                @Override
+                public boolean hasNext() {
+                    if (!and.hasNext()) {
+                        return then.hasNext();
+                    } else {
+                        return and.hasNext();
+                    }
+                }
+                @Override
+                public Option<I> next() {
+                    if (!and.hasNext()) {
+                        return then.next();
+                    } else {
+                        return and.next();
+                    }
+                }
+            };
+        }
+        public <O> Enumerator<O> through(Enumeratee<I, O>... enumeratees) {
+            return new DecoratedEnumerator<O>(this, enumeratees);
+        }
+        public Enumerator<I> prefetch(int size) {
+            return through(Enumeratee.<I>buffer(size));
+        }
+        public <O> Promise<List<O>> groupBy(int partitions, Function<I, ?> key, Function<Enumerator<I>, Promise<O>> pipeline) {
+            return applyOn(Iteratee.partition(partitions, key, pipeline));
+        }
+        public static <T> Enumerator<T> interleave(Enumerator<T>... enumerators) {
+            return new InterleavedEnumerators<T>(null, enumerators);
+        }
+        public static <T> Enumerator<T> interleave(int[] weights, Enumerator<T>... enumerators) {
+            return new InterleavedEnumerators<T>(weights, enumerators);
+        }
+        public static <T> Enumerator<T> mergeSorted(Comparator<? super T> comparator, Enumerator<T>... enumerators) {
+            return new SortedMergeEnumerator<T>(comparator, 16, enumerators);
+        }
+        public static <T> Enumerator<T> mergeSorted(Comparator<? super T> comparator, int prefetch, Enumerator<T>... enumerators) {
+            return new SortedMergeEnumerator<T>(comparator, prefetch, enumerators);
+        }
+        public static <T> Enumerator<T> of(T... args) {
+            return new IterableEnumerator(Arrays.asList(args));
+        }
+        public static <T> Enumerator<T> of(Iterable<T> iterable) {
+            return new IterableEnumerator(iterable);
+        }
+        public static <T> Enumerator<byte[]> fromStream(InputStream is, int chunkSize) {
+            return new FromInputStreamEnumerator(is, chunkSize);
+        }
+        public static <T> Enumerator<byte[]> fromFile(File f, int chunkSize) {
+            try {
+                return new FromInputStreamEnumerator(new FileInputStream(f), chunkSize);
+            } catch (FileNotFoundException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        public static <T> Enumerator<byte[]> fromFile(File f) {
+            try {
+                return new FromInputStreamEnumerator(new FileInputStream(f), 2048);
+            } catch (FileNotFoundException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        public static Enumerator<ByteBuffer> fromChannel(ReadableByteChannel channel, int chunkSize) {
+            return new FromChannelEnumerator(channel, chunkSize, false);
+        }
+        public static Enumerator<ByteBuffer> fromChannel(ReadableByteChannel channel, int chunkSize, boolean reuseBuffers) {
+            return new FromChannelEnumerator(channel, chunkSize, reuseBuffers);
+        }
+        public static Enumerator<ByteBuffer> fromFileChannel(File f, int chunkSize) {
+            return fromFileChannel(f, chunkSize, false);
+        }
+        public static Enumerator<ByteBuffer> fromFileChannel(File f, int chunkSize, boolean reuseBuffers) {
+            try {
+                return new FromChannelEnumerator(new FileInputStream(f).getChannel(), chunkSize, reuseBuffers);
+            } catch (FileNotFoundException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        public static Enumerator<ByteBuffer> fromMappedFile(File f, int chunkSize) {
+            return fromMappedFile(f, chunkSize, false);
+        }
+        public static Enumerator<ByteBuffer> fromMappedFile(File f, int chunkSize, boolean unmapOnDone) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("Chunk size must be positive");
+            }
+            try {
+                return new MappedFileEnumerator(new RandomAccessFile(f, "r").getChannel(), chunkSize, unmapOnDone);
+            } catch (FileNotFoundException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        public static <T> Enumerator<String> fromFileLines(File f) {
+            return fromFileLines(f, Charset.defaultCharset());
+        }
+        public static Enumerator<String> fromFileLines(File f, final Charset charset) {
+            checkLineSeparator(charset);
+            return new FromFileLinesEnumerator<String>(f, false) {
+                @Override
+                String line(byte[] bytes, int offset, int length) {
+                    return new String(bytes, offset, length, charset);
+                }
+            };
+        }
+        public static Enumerator<CharSequence> fromFileLineSequences(File f, final Charset charset) {
+            checkLineSeparator(charset);
+            return new FromFileLinesEnumerator<CharSequence>(f, false) {
+                @Override
+                CharSequence line(byte[] bytes, int offset, int length) {
+                    return charset.decode(ByteBuffer.wrap(bytes, offset, length));
+                }
+            };
+        }
+        public static Enumerator<ByteBuffer> fromFileLineBuffers(File f) {
+            return new FromFileLinesEnumerator<ByteBuffer>(f, true) {
+                @Override
+                ByteBuffer line(byte[] bytes, int offset, int length) {
+                    return ByteBuffer.wrap(bytes, offset, length).slice();
+                }
+            };
+        }
+        public static <T> PushEnumerator<T> unicast(Class<T> clazz) {
+            return new PushEnumerator<T>();
+        }
+        public static <T> PushEnumerator<T> unicast(Class<T> clazz, int capacity) {
+            return new PushEnumerator<T>(capacity);
+        }
+        public static <T> PushEnumerator<T> generate(long every, TimeUnit unit, final Function<Unit, Option<T>> callback) {
+            return new CallbackPushEnumerator<T>(every, unit, callback);
+        }
+        public static <T> PushEnumerator<T> generate(long every, TimeUnit unit, int perTick, Function<Integer, List<T>> callback) {
+            return new DemandCallbackPushEnumerator<T>(every, unit, perTick, perTick * 4, false, callback);
+        }
+        public static <T> PushEnumerator<T> generate(long every, TimeUnit unit, int perTick, int watermark, boolean coalesce, Function<Integer, List<T>> callback) {
+            return new DemandCallbackPushEnumerator<T>(every, unit, perTick, watermark, coalesce, callback);
+        }
+        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator) {
+            return new HubEnumerator(enumerator, true);
+        }
+        public static <T> HubEnumerator<T> broadcast(Enumerator<T> enumerator, boolean start) {
+            return new HubEnumerator(enumerator, start);
+        }
+        public static Enumerator<int[]> range(int from, int to, int step) {
+            return new IntRangeEnumerator(from, to, step, 1024);
+        }
+        public static Enumerator<int[]> range(int from, int to, int step, int chunkSize) {
+            return new IntRangeEnumerator(from, to, step, chunkSize);
+        }
+        public static Enumerator<long[]> range(long from, long to, long step) {
+            return new LongRangeEnumerator(from, to, step, 1024);
+        }
+        public static Enumerator<long[]> range(long from, long to, long step, int chunkSize) {
+            return new LongRangeEnumerator(from, to, step, chunkSize);
+        }
+        public static Enumerator<double[]> range(double from, double to, double step) {
+            return new DoubleRangeEnumerator(from, to, step, 1024);
+        }
+        public static Enumerator<double[]> range(double from, double to, double step, int chunkSize) {
+            return new DoubleRangeEnumerator(from, to, step, chunkSize);
+        }
+        public static <T> Enumerator<T> eof() {
+            return new Enumerator<T>() {
+                @Override
+                public boolean hasNext() {
+                    return false;
+                }
+                @Override
+                public Option<T> next() {
+                    return Option.none();
+                }
+            };
+        }
+        public static <T> Enumerator<T> interleave(final Class<T> clazz, final Enumerator<T>... enumerators) {
+            final PushEnumerator<T> push = Enumerator.unicast(clazz);
+            for (Enumerator<T> enumerator : enumerators) {
+                enumerator.applyOn(Iteratee.foreach(new Function<T, Unit>() {
+                    @Override
+                    public Unit apply(T value) {
+                        push.push(value);
+                        return Unit.unit();
+                    }
+                }));
+            }
+            return push;
+        }
+    }
+    public static abstract class Enumeratee<I, O> implements Forward {
+        private Ref fromEnumerator;
+        private Ref toIteratee;
+        int window = 0;
+        private final Function<I, O> tranform;
+        public Enumeratee(Function<I, O> tranform) {
+            this.tranform = tranform;
+        }
+        public void setToIteratee(Ref toIteratee) {
+            this.toIteratee = toIteratee;
+        }
+
+        public void setFromEnumerator(Ref fromEnumerator) {
+            this.fromEnumerator = fromEnumerator;
+        }
+        public void setToIteratee(ActorRef toIteratee) {
+            this.toIteratee = refOf(toIteratee);
+        }
+        public void setFromEnumerator(ActorRef fromEnumerator) {
+            this.fromEnumerator = refOf(fromEnumerator);
+        }
+        void failed(Throwable error, Ref self) {
+            if (toIteratee != null) {
+                toIteratee.tell(new Failed(error), self);
+            }
+            self.tell(PoisonPill.getInstance());
+        }
+        boolean isFusable() {
+            return tranform != null && !isLegacy();
+        }
+        boolean isLegacy() {
+            return false;
+        }
+        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+            onReceive(msg, refOf(sender), refOf(self));
+        }
+
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    I elem = ((Elem<I>) msg).getOrNull();
+                    O out = null;
+                    if (elem != null) {
+                        out = tranform.apply(elem);
+                    }
+                    if (out != null) {
+                        toIteratee.tell(new Elem<O>(out), self);
+                    } else {
+                        fromEnumerator.tell(Cont.INSTANCE, self);
+                    }
+                    break;
+                }
+                case ELEMS: {
+                    // the incoming list may still be read by other subscribers, so a
+                    // batch costs one output list, shared by all of its elements
+                    List<I> in = ((Elems<I>) msg).get();
+                    List<O> outs = new ArrayList<O>(in.size());
+                    for (int i = 0; i < in.size(); i++) {
+                        O out = tranform.apply(in.get(i));
+                        if (out != null) {
+                            outs.add(out);
+                        }
+                    }
+                    int dropped = in.size() - outs.size();
+                    if (!outs.isEmpty()) {
+                        toIteratee.tell(new Elems<O>(outs), self);
+                        if (window > 0 && dropped > 0) {
+                            fromEnumerator.tell(new Demand(dropped), self);
+                        }
+                    } else if (window > 0) {
+                        fromEnumerator.tell(new Demand(dropped), self);
+                    } else {
+                        fromEnumerator.tell(Cont.INSTANCE, self);
+                    }
+                    break;
+                }
+                case EOF:
+                case EMPTY:
+                    toIteratee.tell(msg, self);
+                    break;
+                case CONT:
+                case DEMAND:
+                    fromEnumerator.tell(msg, self);
+                    break;
+                case DONE:
+                case ERROR:
+                    fromEnumerator.tell(msg, self);
+                    self.tell(PoisonPill.getInstance());
+                    break;
+            }
+        }
+        public static <I,O> Enumeratee<I,O> map(Function<I,O> transform) {
+            return new MapEnumeratee<I, O>(transform);
+        }
+        public static <I,O> Enumeratee<I,I> collect(Function<I,Option<I>> transform) {
+            return new CollectEnumeratee<I>(transform);
+        }
+        public static <I> BufferEnumeratee<I> buffer(int size) {
+            return new BufferEnumeratee<I>(size, Long.MAX_VALUE, null);
+        }
+        public static <I> BufferEnumeratee<I> buffer(int size, long maxBytes, Function<I, Integer> weigher) {
+            return new BufferEnumeratee<I>(size, maxBytes, weigher);
+        }
+        public static <I> Enumeratee<I,I> conflate(Function2<I, I, I> merge) {
+            return new ConflateEnumeratee<I, I>(Enumeratee.<I>identity(), merge);
+        }
+        public static <I,S> Enumeratee<I,S> conflate(Function<I, S> seed, Function2<S, I, S> merge) {
+            return new ConflateEnumeratee<I, S>(seed, merge);
+        }
+        public static <I> Enumeratee<I,I> keepLatest() {
+            return new ConflateEnumeratee<I, I>(Enumeratee.<I>identity(), new Function2<I, I, I>() {
+                @Override
+                public I apply(I latest, I elem) {
+                    return elem;
+                }
+            });
+        }
+        private static <I> Function<I, I> identity() {
+            return new Function<I, I>() {
+                @Override
+                public I apply(I elem) {
+                    return elem;
+                }
+            };
+        }
+        public static <I,O> Enumeratee<I,O> mapAsync(int parallelism, Function<I, Promise<O>> transform) {
+            return new MapAsyncEnumeratee<I, O>(parallelism, true, transform);
+        }
+        public static <I,O> Enumeratee<I,O> mapAsyncUnordered(int parallelism, Function<I, Promise<O>> transform) {
+            return new MapAsyncEnumeratee<I, O>(parallelism, false, transform);
+        }
+        public static <I,O> Enumeratee<I,O> mapParallel(int parallelism, Function<I, O> transform) {
+            return mapParallel(parallelism, transform, computePool());
+        }
+        public static <I,O> Enumeratee<I,O> mapParallel(int parallelism, Function<I, O> transform, Executor executor) {
+            return new MapAsyncEnumeratee<I, O>(parallelism, true, onExecutor(transform, executor));
+        }
+        public static <I,O> Enumeratee<I,O> mapParallelUnordered(int parallelism, Function<I, O> transform) {
+            return mapParallelUnordered(parallelism, transform, computePool());
+        }
+        public static <I,O> Enumeratee<I,O> mapParallelUnordered(int parallelism, Function<I, O> transform, Executor executor) {
+            return new MapAsyncEnumeratee<I, O>(parallelism, false, onExecutor(transform, executor));
+        }
+        public static Enumeratee<int[], int[]> mapInts(final IntFunction transform) {
+            return new MapEnumeratee<int[], int[]>(new Function<int[], int[]>() {
+                @Override
+                public int[] apply(int[] chunk) {
+                    int[] out = new int[chunk.length];
+                    for (int i = 0; i < chunk.length; i++) {
+                        out[i] = transform.apply(chunk[i]);
+                    }
+                    return out;
+                }
+            });
+        }
+        public static Enumeratee<int[], int[]> filterInts(final IntPredicate predicate) {
+            return new MapEnumeratee<int[], int[]>(new Function<int[], int[]>() {
+                @Override
+                public int[] apply(int[] chunk) {
+                    int[] out = new int[chunk.length];
+                    int size = 0;
+                    for (int i = 0; i < chunk.length; i++) {
+                        if (predicate.apply(chunk[i])) {
+                            out[size++] = chunk[i];
+                        }
+                    }
+                    if (size == 0) {
+                        return null;
+                    }
+                    return size == out.length ? out : Arrays.copyOf(out, size);
+                }
+            });
+        }
+        public static Enumeratee<long[], long[]> mapLongs(final LongFunction transform) {
+            return new MapEnumeratee<long[], long[]>(new Function<long[], long[]>() {
+                @Override
+                public long[] apply(long[] chunk) {
+                    long[] out = new long[chunk.length];
+                    for (int i = 0; i < chunk.length; i++) {
+                        out[i] = transform.apply(chunk[i]);
+                    }
+                    return out;
+                }
+            });
+        }
+        public static Enumeratee<long[], long[]> filterLongs(final LongPredicate predicate) {
+            return new MapEnumeratee<long[], long[]>(new Function<long[], long[]>() {
+                @Override
+                public long[] apply(long[] chunk) {
+                    long[] out = new long[chunk.length];
+                    int size = 0;
+                    for (int i = 0; i < chunk.length; i++) {
+                        if (predicate.apply(chunk[i])) {
+                            out[size++] = chunk[i];
+                        }
+                    }
+                    if (size == 0) {
+                        return null;
+                    }
+                    return size == out.length ? out : Arrays.copyOf(out, size);
+                }
+            });
+        }
+        public static Enumeratee<double[], double[]> mapDoubles(final DoubleFunction transform) {
+            return new MapEnumeratee<double[], double[]>(new Function<double[], double[]>() {
+                @Override
+                public double[] apply(double[] chunk) {
+                    double[] out = new double[chunk.length];
+                    for (int i = 0; i < chunk.length; i++) {
+                        out[i] = transform.apply(chunk[i]);
+                    }
+                    return out;
+                }
+            });
+        }
+        public static Enumeratee<double[], double[]> filterDoubles(final DoublePredicate predicate) {
+            return new MapEnumeratee<double[], double[]>(new Function<double[], double[]>() {
+                @Override
+                public double[] apply(double[] chunk) {
+                    double[] out = new double[chunk.length];
+                    int size = 0;
+                    for (int i = 0; i < chunk.length; i++) {
+                        if (predicate.apply(chunk[i])) {
+                            out[size++] = chunk[i];
+                        }
+                    }
+                    if (size == 0) {
+                        return null;
+                    }
+                    return size == out.length ? out : Arrays.copyOf(out, size);
+                }
+            });
+        }
+    }
+
+    /**************************************************************************/
+    /**************************************************************************/
+    /**************************************************************************/
+
+    private static class DecoratedEnumerator<I> extends Enumerator<I> {
+        private final Enumerator<?> fromEnumerator;
+        private final List<Function> functions = new CopyOnWriteArrayList<Function>();
+        private final List<Enumeratee> enumeratees = new ArrayList<Enumeratee>();
+        private final List<Enumeratee> stages = new ArrayList<Enumeratee>();
+        private Iteratee<I, ?> toIteratee;
+        private final Enumeratee throughEnumeratee = Enumeratee.map(new Function<Object, Object>() {
+            @Override
+            public Object apply(Object t) {
+                return applyTransforms(t);
+            }
+        });
+        DecoratedEnumerator(Enumerator<?> fromEnumerator,
+                            Enumeratee<?, I>... throughEnumeratees) {
+            this.fromEnumerator = fromEnumerator;
+            if (throughEnumeratees != null && throughEnumeratees.length > 0) {
+                enumeratees.addAll(Arrays.asList(throughEnumeratees));
+                boolean fusable = true;
+                for (Enumeratee enumeratee : throughEnumeratees) {
+                    fusable = fusable && enumeratee.isFusable();
+                }
+                if (fusable) {
+                    for (Enumeratee enumeratee : throughEnumeratees) {
+                        functions.add(enumeratee.tranform);
+                    }
+                } else {
+                    fuseStages();
+                }
+            } else {
+                throw new RuntimeException("You have to provide at least one enumeratee");
+            }
+        }
+        private void fuseStages() {
+            final List<Function> run = new ArrayList<Function>();
+            for (Enumeratee enumeratee : enumeratees) {
+                if (enumeratee.isFusable()) {
+                    run.add(enumeratee.tranform);
+                } else {
+                    if (!run.isEmpty()) {
+                        stages.add(Enumeratee.map(compose(run)));
+                        run.clear();
+                    }
+                    stages.add(enumeratee);
+                }
+            }
+            if (!run.isEmpty()) {
+                stages.add(Enumeratee.map(compose(run)));
+            }
+        }
+        private static Function<Object, Object> compose(List<Function> functions) {
+            final Function[] chain = functions.toArray(new Function[functions.size()]);
+            return new Function<Object, Object>() {
+                @Override
+                public Object apply(Object in) {
+                    Object res = in;
+                    for (int i = 0; i < chain.length && res != null; i++) {
+                        res = chain[i].apply(res);
+                    }
+                    return res;
+                }
+            };
+        }
+
+        @Override
+        public <O> Promise<O> applyOn(Iteratee<I, O> it, int window) {
+            if (!stages.isEmpty()) {
+                return applyOnStages(it, window);
+            }
+            toIteratee = it;
+            Promise<O> res = it.getAsyncResult();
+            setWindow(window);
+            toIteratee.window = window;
+            throughEnumeratee.window = window;
+            if (it instanceof Retaining) {
+                fromEnumerator.retainElements();
+            }
+            iteratee = actorOf(toIteratee);
+            Ref enumeratee = actorOf(throughEnumeratee);
+            enumerator = actorOf(fromEnumerator);
+            upstream = enumeratee;
+            fromEnumerator.setEnumerator(enumerator);
+            fromEnumerator.setIteratee(enumeratee);
+            throughEnumeratee.setFromEnumerator(enumerator);
+            throughEnumeratee.setToIteratee(iteratee);
+            fromEnumerator.onApply();
+            enumerator.tell(start(window), enumeratee);
+            return res;
+        }
+        private <O> Promise<O> applyOnStages(Iteratee<I, O> it, int window) {
+            toIteratee = it;
+            Promise<O> res = it.getAsyncResult();
+            setWindow(window);
+            toIteratee.window = window;
+            if (it instanceof Retaining) {
+                fromEnumerator.retainElements();
+            }
+            for (Enumeratee stage : stages) {
+                if (stage instanceof Retaining) {
+                    fromEnumerator.retainElements();
+                }
+            }
+            iteratee = actorOf(toIteratee);
+            Ref[] refs = new Ref[stages.size()];
+            Ref downstream = iteratee;
+            for (int i = stages.size() - 1; i >= 0; i--) {
+                Enumeratee stage = stages.get(i);
+                stage.window = window;
+                stage.setToIteratee(downstream);
+                refs[i] = actorOf(stage);
+                downstream = refs[i];
+            }
+            enumerator = actorOf(fromEnumerator);
+            upstream = refs[refs.length - 1];
+            for (int i = 0; i < refs.length; i++) {
+                stages.get(i).setFromEnumerator(i == 0 ? enumerator : refs[i - 1]);
+            }
+            fromEnumerator.setEnumerator(enumerator);
+            fromEnumerator.setIteratee(refs[0]);
+            fromEnumerator.onApply();
+            enumerator.tell(start(window), refs[0]);
+            return res;
+        }
+        @Override
+        public <O> Promise<O> applyOnSync(Iteratee<I, O> it) {
+            if (it.isLegacy() || hasLegacyStage()) {
+                return applyOn(it);
+            }
+            checkPullBased();
+            toIteratee = it;
+            Promise<O> res = it.getAsyncResult();
+            setWindow(0);
+            toIteratee.window = 0;
+            toIteratee.sync = true;
+            throughEnumeratee.window = 0;
+            if (it instanceof Retaining) {
+                fromEnumerator.retainElements();
+            }
+            FusedLoop loop = new FusedLoop();
+            iteratee = loop.ref(toIteratee);
+            Ref enumeratee = loop.ref(throughEnumeratee);
+            enumerator = loop.ref(fromEnumerator);
+            fromEnumerator.setEnumerator(enumerator);
+            fromEnumerator.setIteratee(enumeratee);
+            throughEnumeratee.setFromEnumerator(enumerator);
+            throughEnumeratee.setToIteratee(iteratee);
+            enumerator.tell(Run.INSTANCE, enumeratee);
+            loop.run();
+            return res;
+        }
+        private boolean hasLegacyStage() {
+            for (Enumeratee stage : stages) {
+                if (stage.isLegacy()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        @Override
+        boolean isPullBased() {
+            return stages.isEmpty() && fromEnumerator.isPullBased();
+        }
+        private void checkFused() {
+            if (!stages.isEmpty()) {
+                throw new UnsupportedOperationException("Enumerators with asynchronous stages can't be pulled");
+            }
+        }
+        private Object applyTransforms(Object in) {
+            Object res = in;
+            for (Function func : functions) {
+                res = func.apply(res);
+            }
+            return res;
+        }
+        @Override
+        public boolean hasNext() {
+            return fromEnumerator.hasNext();
+            //throw new RuntimeException("Should never happen");
+        }
+        @Override
+        public Option<I> next() {
+            checkFused();
+            for (Object o : fromEnumerator.next()) {
+                I i = (I) applyTransforms(o);
+                return Option.some(i);
+            }
+            return Option.none();
+            //throw new RuntimeException("Should never happen");
+        }
+        @Override
+        public List<I> nextBatch(int max) {
+            checkFused();
+            List<I> batch = new ArrayList<I>();
+            while (batch.isEmpty() && fromEnumerator.hasNext()) {
+                List<?> in = fromEnumerator.nextBatch(max);
+                if (in.isEmpty()) {
+                    break;
+                }
+                for (Object o : in) {
+                    Object out = applyTransforms(o);
+                    if (out != null) {
+                        batch.add((I) out);
+                    }
+                }
+            }
+            return batch;
+        }
+        @Override
+        public Enumerator<I> batched(int max) {
+            fromEnumerator.batched(max);
+            return super.batched(max);
+        }
+        @Override
+        void onApply() {
+            fromEnumerator.onApply();
+        }
+        @Override
+        void retainElements() {
+            fromEnumerator.retainElements();
+        }
+        @Override
+        void onDone() {
+            fromEnumerator.onDone();
+        }
+        void setEnumerator(Ref ref) {
+            this.fromEnumerator.setEnumerator(ref);
+        }
+        void setIteratee(Ref ref) {
+            this.fromEnumerator.setIteratee(ref);
+        }
+        void setWindow(int window) {
+            super.setWindow(window);
+            this.fromEnumerator.setWindow(window);
+        }
+        @Override
+        public <O> Enumerator<O> through(Enumeratee<I, O>... enumeratees) {
+            if (!stages.isEmpty()) {
+                List<Enumeratee> all = new ArrayList<Enumeratee>(this.enumeratees);
+                all.addAll(Arrays.asList(enumeratees));
+                return new DecoratedEnumerator<O>(fromEnumerator, all.toArray(new Enumeratee[all.size()]));
+            }
+            return new DecoratedEnumerator<O>(this, enumeratees);
+            //throw new RuntimeException("Not allowed. Try to chained Enumeratee instead");
+        }
+    }
+    public static class IterableEnumerator<T> extends Enumerator<T> {
+        private final Iterator<T> it;
+        public IterableEnumerator(Iterable<T> iterable) {
+            it = iterable.iterator();
+        }
+        @Override
+        public Option<T> next() {
+            T obj = null;
+            try {
+                obj = it.next();
+            } catch (Exception e) { e.printStackTrace(); }
+            return Option.apply(obj);
+        }
+        @Override
+        public List<T> nextBatch(int max) {
+            List<T> batch = new ArrayList<T>(Math.min(max, 1024));
+            while (batch.size() < max && it.hasNext()) {
+                T obj = it.next();
+                if (obj != null) {
+                    batch.add(obj);
+                }
+            }
+            return batch;
+        }
+        @Override
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+    }
+    public static class LongEnumerator extends Enumerator<Long> {
+        private Long current = 0L;
+        @Override
+        public Option<Long> next() {
+            current = current + 1L;
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Long.MAX_VALUE);
+        }
+    }
+    public static class IntEnumerator extends Enumerator<Integer> {
+        private Integer current = 0;
+        @Override
+        public Option<Integer> next() {
+            current = current + 1;
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Integer.MAX_VALUE);
+        }
+    }
+    public static class ShortEnumerator extends Enumerator<Short> {
+        private Short current = 0;
+        @Override
+        public Option<Short> next() {
+            current = (short)(current + 1);
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Short.MAX_VALUE);
+        }
+    }
+    public static class FloatEnumerator extends Enumerator<Float> {
+        private Float current = 0F;
+        @Override
+        public Option<Float> next() {
+            current = current + 1F;
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Float.MAX_VALUE);
+        }
+    }
+    public static class DoubleEnumerator extends Enumerator<Double> {
+        private Double current = 0.0;
+        @Override
+        public Option<Double> next() {
+            current = current + 1.0;
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Double.MAX_VALUE);
+        }
+    }
+    public static class ByteEnumerator extends Enumerator<Byte> {
+        private Byte current = 0;
+        @Override
+        public Option<Byte> next() {
+            current = (byte)(current + 1);
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Byte.MAX_VALUE);
+        }
+    }
+    public static class BigIntegerEnumerator extends Enumerator<BigInteger> {
+        private BigInteger current = BigInteger.ZERO;
+        @Override
+        public Option<BigInteger> next() {
+            current = current.add(BigInteger.ONE);
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) == -1);
+        }
+    }
+    public static class BigDecimalEnumerator extends Enumerator<BigDecimal> {
+        private BigDecimal current = BigDecimal.ZERO;
+        @Override
+        public Option<BigDecimal> next() {
+            current = current.add(BigDecimal.ONE);
+            return Option.some(current);
+        }
+        @Override
+        public boolean hasNext() {
+            return (current.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) == -1);
+        }
+    }
+    public static class CharacterEnumerator extends Enumerator<Character> {
+        private int current = 0;
+        @Override
+        public Option<Character> next() {
+            current = current + 1;
+            return Option.some(new Character(((char)current)));
+        }
+        @Override
+        public boolean hasNext() {
+            return (current < Character.MAX_VALUE);
+        }
+    }
+    public static class IntRangeEnumerator extends Enumerator<int[]> {
+        private final int from;
+        private final int step;
+        private final int chunkSize;
+        private final long count;
+        private long index = 0L;
+        public IntRangeEnumerator(int from, int to, int step, int chunkSize) {
+            if (step == 0) {
+                throw new IllegalArgumentException("Step can't be zero");
+            }
+            this.from = from;
+            this.step = step;
+            this.chunkSize = chunkSize;
+            this.count = rangeCount(BigInteger.valueOf(from), BigInteger.valueOf(to), BigInteger.valueOf(step));
+        }
+        @Override
+        public Option<int[]> next() {
+            int[] chunk = new int[(int) Math.min(chunkSize, count - index)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = (int) (from + index * step);
+                index++;
+            }
+            return Option.some(chunk);
+        }
+        @Override
+        public boolean hasNext() {
+            return index < count;
+        }
+    }
+    public static class LongRangeEnumerator extends Enumerator<long[]> {
+        private final long from;
+        private final long step;
+        private final int chunkSize;
+        private final long count;
+        private long index = 0L;
+        private long current;
+        public LongRangeEnumerator(long from, long to, long step, int chunkSize) {
+            if (step == 0L) {
+                throw new IllegalArgumentException("Step can't be zero");
+            }
+            this.from = from;
+            this.current = from;
+            this.step = step;
+            this.chunkSize = chunkSize;
+            this.count = rangeCount(BigInteger.valueOf(from), BigInteger.valueOf(to), BigInteger.valueOf(step));
+        }
+        @Override
+        public Option<long[]> next() {
+            long[] chunk = new long[(int) Math.min(chunkSize, count - index)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = current;
+                current += step;
+                index++;
+            }
+            return Option.some(chunk);
+        }
+        @Override
+        public boolean hasNext() {
+            return index < count;
+        }
+    }
+    public static class DoubleRangeEnumerator extends Enumerator<double[]> {
+        private final double from;
+        private final double step;
+        private final int chunkSize;
+        private final long count;
+        private long index = 0L;
+        public DoubleRangeEnumerator(double from, double to, double step, int chunkSize) {
+            if (step == 0.0 || Double.isNaN(step)) {
+                throw new IllegalArgumentException("Step can't be zero");
+            }
+            this.from = from;
+            this.step = step;
+            this.chunkSize = chunkSize;
+            this.count = (long) Math.max(0.0, Math.ceil((to - from) / step));
+        }
+        @Override
+        public Option<double[]> next() {
+            double[] chunk = new double[(int) Math.min(chunkSize, count - index)];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = from + index * step;
+                index++;
+            }
+            return Option.some(chunk);
+        }
+        @Override
+        public boolean hasNext() {
+            return index < count;
+        }
+    }
+    private static long rangeCount(BigInteger from, BigInteger to, BigInteger step) {
+        BigInteger distance = to.subtract(from);
+        if (distance.signum() != step.signum()) {
+            return 0L;
+        }
+        BigInteger[] division = distance.divideAndRemainder(step);
+        BigInteger count = division[1].signum() == 0 ? division[0] : division[0].add(BigInteger.ONE);
+        return count.min(BigInteger.valueOf(Long.MAX_VALUE)).longValue();
+    }
+    private static class FromInputStreamEnumerator extends Enumerator<byte[]> implements Blocking {
+        private final InputStream is;
+        private final int chunkSize;
+        private boolean hasnext = true;
+        public FromInputStreamEnumerator(InputStream is, int chunkSize) {
+            this.is = is;
+            this.chunkSize = chunkSize;
+        }
+        @Override
+        public Option<byte[]> next() {
+            byte[] bytes = new byte[chunkSize];
+            int numRead = -1;
+            try {
+                numRead = is.read(bytes);
+                if (numRead == -1) {
+                    close();
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                close();
+            }
+            if (numRead == -1) {
+                return Option.none();
+            }
+            if (numRead < chunkSize) {
+                return Option.some(Arrays.copyOf(bytes, numRead));
+            }
+            return Option.some(bytes);
+        }
+        private void close() {
+            hasnext = false;
+            try {
+                is.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        @Override
+        public boolean hasNext() {
+            return hasnext;
+        }
+    }
+    private static class FromChannelEnumerator extends Enumerator<ByteBuffer> implements Blocking {
+        private final ReadableByteChannel channel;
+        private final int chunkSize;
+        private boolean reuseBuffers;
+        private ByteBuffer readBuffer;
+        private ByteBuffer[] buffers;
+        private int current = 0;
+        private boolean hasnext = true;
+        public FromChannelEnumerator(ReadableByteChannel channel, int chunkSize, boolean reuseBuffers) {
+            if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+                throw new IllegalArgumentException("Non blocking channels are not supported");
+            }
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.reuseBuffers = reuseBuffers;
+        }
+        @Override
+        public Option<ByteBuffer> next() {
+            ByteBuffer buffer = nextBuffer();
+            buffer.clear();
+            try {
+                while (buffer.hasRemaining()) {
+                    int numRead = channel.read(buffer);
+                    if (numRead == -1) {
+                        close();
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                fail(e);
+                return Option.none();
+            }
+            buffer.flip();
+            if (!buffer.hasRemaining()) {
+                return Option.none();
+            }
+            if (reuseBuffers) {
+                return Option.some(buffer.slice());
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(buffer.remaining());
+            chunk.put(buffer);
+            chunk.flip();
+            return Option.some(chunk);
+        }
+        @Override
+        void retainElements() {
+            reuseBuffers = false;
+        }
+        // a reused buffer can only be handed out again once the iteratee
+        // acknowledged it, so keep one buffer per element that can be in flight
+        private ByteBuffer nextBuffer() {
+            if (!reuseBuffers) {
+                if (readBuffer == null) {
+                    readBuffer = ByteBuffer.allocateDirect(chunkSize);
+                }
+                return readBuffer;
+            }
+            if (buffers == null) {
+                buffers = new ByteBuffer[Math.max(window, batchSize) + 1];
+            }
+            current = (current + 1) % buffers.length;
+            if (buffers[current] == null) {
+                buffers[current] = ByteBuffer.allocateDirect(chunkSize);
+            }
+            return buffers[current];
+        }
+        private void close() {
+            hasnext = false;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        @Override
+        public boolean hasNext() {
+            return hasnext;
+        }
+    }
+    private static class MappedFileEnumerator extends Enumerator<ByteBuffer> implements Blocking {
+        private static final long MAX_REGION_SIZE = 1L << 30;
+        private final FileChannel channel;
+        private final int chunkSize;
+        private final long regionSize;
+        private final List<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+        private boolean unmapOnDone;
+        private MappedByteBuffer region;
+        private long size;
+        private long position = 0L;
+        public MappedFileEnumerator(FileChannel channel, int chunkSize, boolean unmapOnDone) {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.unmapOnDone = unmapOnDone;
+            this.regionSize = Math.max(chunkSize, (MAX_REGION_SIZE / chunkSize) * chunkSize);
+            try {
+                this.size = channel.size();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        @Override
+        public Option<ByteBuffer> next() {
+            try {
+                if (region == null || !region.hasRemaining()) {
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(regionSize, size - position));
+                    if (unmapOnDone) {
+                        regions.add(region);
+                    }
+                }
+            } catch (IOException e) {
+                size = position;
+                fail(e);
+                return Option.none();
+            }
+            int length = Math.min(chunkSize, region.remaining());
+            ByteBuffer chunk = region.slice();
+            chunk.limit(length);
+            region.position(region.position() + length);
+            position += length;
+            return Option.some(chunk);
+        }
+        @Override
+        public boolean hasNext() {
+            return position < size;
+        }
+        // by default passed regions are only referenced by the chunks still in
+        // use and are released by the garbage collector; with unmapOnDone they
+        // are force-unmapped once the iteratee answered Done, unless a retaining
+        // stage sits downstream
+        @Override
+        void retainElements() {
+            unmapOnDone = false;
+        }
+        @Override
+        void onDone() {
+            if (unmapOnDone) {
+                for (MappedByteBuffer mapped : regions) {
+                    unmap(mapped);
+                }
+            }
+            regions.clear();
+            region = null;
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException e) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception ex) {
+                // left to the garbage collector
+            }
+        } catch (Exception e) {
+            // left to the garbage collector
+        }
+    }
+    // lines are split on '\n' bytes, so the charset has to encode it as that single byte
+    private static void checkLineSeparator(Charset charset) {
+        ByteBuffer separator = null;
+        if (charset.canEncode()) {
+            try {
+                separator = charset.newEncoder().encode(CharBuffer.wrap("\n"));
+            } catch (CharacterCodingException e) {
+                separator = null;
+            }
+        }
+        if (separator == null || separator.remaining() != 1 || separator.get(0) != '\n') {
+            throw new IllegalArgumentException("Lines can not be split on '\\n' bytes in " + charset.name());
+        }
+    }
+    private static abstract class FromFileLinesEnumerator<T> extends Enumerator<T> implements Blocking {
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private final FileChannel channel;
+        private final boolean shareBuffers;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+        private int start = 0;
+        private int scan = 0;
+        private int end = 0;
+        private boolean eof = false;
+        public FromFileLinesEnumerator(File f, boolean shareBuffers) {
+            try {
+                this.channel = new FileInputStream(f).getChannel();
+            } catch (FileNotFoundException e) { throw new RuntimeException(e); }
+            this.shareBuffers = shareBuffers;
+        }
+        abstract T line(byte[] bytes, int offset, int length);
+        @Override
+        public Option<T> next() {
+            return Option.apply(nextLine());
+        }
+        @Override
+        public List<T> nextBatch(int max) {
+            List<T> batch = new ArrayList<T>(Math.min(max, 1024));
+            T line = null;
+            while (batch.size() < max && (line = nextLine()) != null) {
+                batch.add(line);
+            }
+            return batch;
+        }
+        @Override
+        public boolean hasNext() {
+            return !eof || start < end;
+        }
+        private T nextLine() {
+            while (true) {
+                for (int i = scan; i < end; i++) {
+                    if (buffer[i] == '\n') {
+                        int length = i - start;
+                        if (length > 0 && buffer[i - 1] == '\r') {
+                            length--;
+                        }
+                        T line = line(buffer, start, length);
+                        start = i + 1;
+                        scan = start;
+                        return line;
+                    }
+                }
+                scan = end;
+                if (eof) {
+                    if (start < end) {
+                        T line = line(buffer, start, end - start);
+                        start = end;
+                        return line;
+                    }
+                    return null;
+                }
+                fill();
+            }
+        }
+        private void fill() {
+            int pending = end - start;
+            byte[] target = buffer;
+            if (pending == buffer.length) {
+                target = new byte[buffer.length * 2];
+            } else if (shareBuffers) {
+                target = new byte[buffer.length];
+            }
+            System.arraycopy(buffer, start, target, 0, pending);
+            buffer = target;
+            scan -= start;
+            start = 0;
+            end = pending;
+            try {
+                int read = channel.read(ByteBuffer.wrap(buffer, end, buffer.length - end));
+                if (read < 0) {
+                    close();
+                } else {
+                    end += read;
+                }
+            } catch (IOException e) {
+                start = end;
+                close();
+                fail(e);
+            }
+        }
+        private void close() {
+            eof = true;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        @Override
+        void onDone() {
+            if (!eof) {
+                close();
+            }
+        }
+    }
+    public static class PushEnumerator<T> extends Enumerator<T> {
+        private boolean hasnext = true;
+        private final MpscRing<T> ring;
+        private final ConcurrentLinkedQueue<Pending<T>> pending = new ConcurrentLinkedQueue<Pending<T>>();
+        private final AtomicBoolean signalled = new AtomicBoolean(false);
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+        public PushEnumerator() {
+            this(16384);
+        }
+        public PushEnumerator(int capacity) {
+            this.ring = new MpscRing<T>(capacity);
+        }
+        @Override
+        public Option<T> next() {
+            T elem = poll();
+            if (elem == null) {
+                signalled.set(false);
+                elem = poll();
+                if (elem != null) {
+                    signalled.set(true);
+                }
+            }
+            return Option.apply(elem);
+        }
+        @Override
+        public List<T> nextBatch(int max) {
+            List<T> batch = new ArrayList<T>(Math.min(max, 1024));
+            T elem = null;
+            while (batch.size() < max && (elem = poll()) != null) {
+                batch.add(elem);
+            }
+            if (batch.isEmpty()) {
+                for (T e : next()) {
+                    batch.add(e);
+                }
+            }
+            return batch;
+        }
+        private T poll() {
+            T elem = ring.poll();
+            if (elem != null && !pending.isEmpty()) {
+                refill();
+            }
+            return elem;
+        }
+        @Override
+        public boolean hasNext() {
+            if (!ring.isEmpty()) {
+                return true;
+            }
+            return hasnext;
+        }
+        int queued() {
+            return ring.size();
+        }
+        @Override
+        boolean isPullBased() {
+            return false;
+        }
+        public boolean offer(T elem) {
+            if (!pending.isEmpty() || !ring.offer(elem)) {
+                return false;
+            }
+            signal();
+            return true;
+        }
+        public void push(T elem) {
+            long backoff = 1000L;
+            while (!offer(elem)) {
+                LockSupport.parkNanos(backoff);
+                backoff = Math.min(backoff * 2L, 1000000L);
+            }
+        }
+        public Promise<Unit> pushAsync(T elem) {
+            Promise<Unit> promise = new Promise<Unit>();
+            if (offer(elem)) {
+                promise.apply(Unit.unit());
+            } else {
+                pending.offer(new Pending<T>(elem, promise));
+                refill();
+            }
+            return promise;
+        }
+        private void refill() {
+            while (!pending.isEmpty() && ring.hasRoom() && refilling.compareAndSet(false, true)) {
+                try {
+                    Pending<T> waiting = null;
+                    while ((waiting = pending.peek()) != null && ring.offer(waiting.elem)) {
+                        pending.poll();
+                        signal();
+                        waiting.promise.apply(Unit.unit());
+                    }
+                } finally {
+                    refilling.set(false);
+                }
+            }
+        }
+        private void signal() {
+            if (signalled.compareAndSet(false, true)) {
+                try {
+                    if (enumerator != null) {
+                        enumerator.tell(window > 0 ? Run.INSTANCE : Cont.INSTANCE, iteratee);
+                    }
+                } catch (Exception e) { e.printStackTrace(); }
+            }
+        }
+        public void stop() {
+            hasnext = false;
+            signal();
+        }
+    }
+    private static final class Pending<T> {
+        private final T elem;
+        private final Promise<Unit> promise;
+        public Pending(T elem, Promise<Unit> promise) {
+            this.elem = elem;
+            this.promise = promise;
+        }
+    }
+    private static final class MpscRing<T> {
+        private final int mask;
+        private final AtomicReferenceArray<T> elements;
+        private final AtomicLongArray sequences;
+        private final AtomicLong tail = new AtomicLong(0L);
+        private volatile long head = 0L;
+        public MpscRing(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+            this.mask = size - 1;
+            this.elements = new AtomicReferenceArray<T>(size);
+            this.sequences = new AtomicLongArray(size);
+            for (int i = 0; i < size; i++) {
+                sequences.set(i, i);
+            }
+        }
+        boolean offer(T elem) {
+            while (true) {
+                long t = tail.get();
+                int index = (int) (t & mask);
+                long gap = sequences.get(index) - t;
+                if (gap == 0L) {
+                    if (tail.compareAndSet(t, t + 1L)) {
+                        elements.lazySet(index, elem);
+                        sequences.set(index, t + 1L);
+                        return true;
+                    }
+                } else if (gap < 0L) {
+                    return false;
+                }
+            }
+        }
+        T poll() {
+            long h = head;
+            int index = (int) (h & mask);
+            if (sequences.get(index) != h + 1L) {
+                return null;
+            }
+            T elem = elements.get(index);
+            elements.lazySet(index, null);
+            sequences.set(index, h + mask + 1L);
+            head = h + 1L;
+            return elem;
+        }
+        boolean isEmpty() {
+            return sequences.get((int) (head & mask)) != head + 1L;
+        }
+        boolean hasRoom() {
+            return tail.get() - head <= mask;
+        }
+        int size() {
+            return (int) Math.max(0L, tail.get() - head);
+        }
+    }
+    private static class CallbackPushEnumerator<T> extends PushEnumerator<T> {
+        private final long every;
+        private final TimeUnit unit;
+        private final Function<Unit, Option<T>> callback;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        public CallbackPushEnumerator(long every, TimeUnit unit, Function<Unit, Option<T>> callback) {
+            this.every = every;
+            this.unit = unit;
+            this.callback = callback;
+        }
+        CallbackPushEnumerator(long every, TimeUnit unit, int capacity) {
+            super(capacity);
+            this.every = every;
+            this.unit = unit;
+            this.callback = null;
+        }
+        @Override
+        public <O> Promise<O> applyOn(Iteratee<T, O> it, int window) {
+            Promise<O> promise = super.applyOn(it, window);
+            if (!scheduled.get()) {
+                schedule();
+            }
+            return promise;
+        }
+        private void schedule() {
+            cancel = backend().schedule(0, every, unit, new Runnable() {
+                @Override
+                public void run() {
+                    tick();
+                }
+            });
+            scheduled.set(true);
+        }
+        void tick() {
+            Option<T> opt = callback.apply(Unit.unit());
+            for (T elem : opt) {
+                offer(elem);
+            }
+        }
+        @Override
+        void onApply() {
+            if (!scheduled.get()) {
+                schedule();
+            }
+        }
+        private Cancellable cancel;
+        @Override
+        public void stop() {
+            super.stop();
+            cancelTicks();
+        }
+        void cancelTicks() {
+            if (cancel != null) {
+                cancel.cancel();
+            }
+        }
+    }
+    // elements are only generated when downstream asks for them, the
+    // schedule merely wakes a consumer that ran out of budget, so its
+    // resolution does not bound the rate. Periods elapsed while nobody
+    // was asking are dropped unless coalescing, up to the watermark.
+    private static class DemandCallbackPushEnumerator<T> extends CallbackPushEnumerator<T> {
+        private final long period;
+        private final int perTick;
+        private final int watermark;
+        private final boolean coalesce;
+        private final Function<Integer, List<T>> callback;
+        private final AtomicBoolean waiting = new AtomicBoolean(false);
+        private volatile boolean stopped = false;
+        private long last = -1L;
+        private long owed = 0L;
+        public DemandCallbackPushEnumerator(long every, TimeUnit unit, int perTick, int watermark, boolean coalesce, Function<Integer, List<T>> callback) {
+            super(Math.max(unit.toNanos(every), TimeUnit.MILLISECONDS.toNanos(1)), TimeUnit.NANOSECONDS, 2);
+            this.period = Math.max(1L, unit.toNanos(every));
+            this.perTick = Math.max(1, perTick);
+            this.watermark = Math.max(this.perTick, watermark);
+            this.coalesce = coalesce;
+            this.callback = callback;
+        }
+        @Override
+        void tick() {
+            if (available() > 0L && waiting.compareAndSet(true, false)) {
+                wake();
+            }
+        }
+        @Override
+        public Option<T> next() {
+            List<T> elems = nextBatch(1);
+            return elems.isEmpty() ? Option.<T>none() : Option.some(elems.get(0));
         }
-        private Object applyTransforms(Object in) {
-            Object res = in;
-            for (Function func : functions) {
-                res = func.apply(res);
+        @Override
+        public List<T> nextBatch(int max) {
+            int demand = stopped ? 0 : take(max);
+            if (demand <= 0) {
+                waiting.set(true);
+                if (stopped) {
+                    waiting.set(false);
+                }
+                return Collections.emptyList();
             }
-            return res;
+            List<T> elems = callback.apply(demand);
+            if (elems == null) {
+                elems = Collections.emptyList();
+            } else if (elems.size() > demand) {
+                elems = elems.subList(0, demand);
+            }
+            if (elems.size() < demand) {
+                refund(demand - elems.size());
+            }
+            return elems;
         }
         @Override
         public boolean hasNext() {
-            return fromEnumerator.hasNext();
-            //throw new RuntimeException("Should never happen");
+            return !stopped;
         }
         @Override
-        public Option<I> next() {
-            for (Object o : fromEnumerator.next()) {
-                I i = (I) applyTransforms(o);
-                return Option.some(i);
+        public void stop() {
+            stopped = true;
+            cancelTicks();
+            if (waiting.compareAndSet(true, false)) {
+                wake();
             }
-            return Option.none();
-            //throw new RuntimeException("Should never happen");
         }
-        @Override
-        void onApply() {
-            fromEnumerator.onApply();
+        private void wake() {
+            if (enumerator != null) {
+                enumerator.tell(window > 0 ? Run.INSTANCE : Cont.INSTANCE, iteratee);
+            }
         }
-        void setEnumerator(ActorRef ref) {
-            this.fromEnumerator.setEnumerator(ref);
+        private synchronized long available() {
+            long now = System.nanoTime();
+            if (last < 0L) {
+                last = now;
+                owed = perTick;
+            } else {
+                long ticks = (now - last) / period;
+                if (ticks > 0L) {
+                    last += ticks * period;
+                    long cap = coalesce || waiting.get() ? watermark : perTick;
+                    owed = Math.min(owed + Math.min(ticks, watermark) * perTick, cap);
+                }
+            }
+            return owed;
         }
-        void setIteratee(ActorRef ref) {
-            this.fromEnumerator.setIteratee(ref);
+        private synchronized int take(int max) {
+            int demand = (int) Math.min(max, available());
+            owed -= demand;
+            return demand;
         }
-        @Override
-        public <O> Enumerator<O> through(Enumeratee<I, O>... enumeratees) {
-            return new DecoratedEnumerator<O>(this, enumeratees);
-            //throw new RuntimeException("Not allowed. Try to chained Enumeratee instead");
+        private synchronized void refund(int count) {
+            owed += count;
         }
     }
-    public static class IterableEnumerator<T> extends Enumerator<T> {
-        private final Iterator<T> it;
-        public IterableEnumerator(Iterable<T> iterable) {
-            it = iterable.iterator();
+    private static class InterleavedEnumerators<T> extends Enumerator<T> {
+        private final List<Enumerator<T>> enumerators;
+        private final int[] weights;
+        private int pullCursor = 0;
+        private int pulled = 0;
+        public InterleavedEnumerators(int[] weights, Enumerator<T>... enumerators) {
+            this.enumerators = new CopyOnWriteArrayList<Enumerator<T>>(Arrays.asList(enumerators));
+            this.weights = new int[enumerators.length];
+            for (int i = 0; i < enumerators.length; i++) {
+                this.weights[i] = weights == null || i >= weights.length ? 1 : Math.max(1, weights[i]);
+            }
         }
         @Override
         public Option<T> next() {
-            T obj = null;
-            try {
-                obj = it.next();
-            } catch (Exception e) { e.printStackTrace(); }
-            return Option.apply(obj);
+            for (int tries = 0; tries < enumerators.size(); tries++) {
+                Enumerator<T> en = enumerators.get(pullCursor);
+                if (pulled < weights[pullCursor] && en.hasNext()) {
+                    pulled++;
+                    Option<T> elem = en.next();
+                    if (elem.isDefined()) {
+                        return elem;
+                    }
+                }
+                pullCursor = (pullCursor + 1) % enumerators.size();
+                pulled = 0;
+            }
+            return Option.none();
         }
         @Override
         public boolean hasNext() {
-            return it.hasNext();
+            for (Enumerator en : enumerators) {
+                if (en.hasNext()) {
+                    return true;
+                }
+            }
+            return false;
         }
-    }
-    public static class LongEnumerator extends Enumerator<Long> {
-        private Long current = 0L;
         @Override
-        public Option<Long> next() {
-            current = current + 1L;
-            return Option.some(current);
+        public <O> Promise<O> applyOn(final Iteratee<T, O> it, int window) {
+            return applyMerged(this, enumerators, weights, null, it, window);
         }
+
         @Override
-        public boolean hasNext() {
-            return (current < Long.MAX_VALUE);
+        void onApply() {
+            for (Enumerator e : enumerators) {
+                e.onApply();
+            }
         }
-    }
-    public static class IntEnumerator extends Enumerator<Integer> {
-        private Integer current = 0;
         @Override
-        public Option<Integer> next() {
-            current = current + 1;
-            return Option.some(current);
+        boolean isPullBased() {
+            for (Enumerator e : enumerators) {
+                if (!e.isPullBased()) {
+                    return false;
+                }
+            }
+            return true;
         }
-        @Override
-        public boolean hasNext() {
-            return (current < Integer.MAX_VALUE);
+        void setIteratee(Ref ref) {
+            for (Enumerator e : enumerators) {
+                e.setIteratee(ref);
+            }
+        }
+        void setEnumerator(Ref ref) {
+            for (Enumerator e : enumerators) {
+                e.setEnumerator(ref);
+            }
         }
     }
-    public static class ShortEnumerator extends Enumerator<Short> {
-        private Short current = 0;
-        @Override
-        public Option<Short> next() {
-            current = (short)(current + 1);
-            return Option.some(current);
+    private static <T, O> Promise<O> applyMerged(Enumerator<T> owner, List<Enumerator<T>> enumerators, int[] weights,
+            Comparator<? super T> comparator, Iteratee<T, O> it, int window) {
+        Promise<O> res = it.getAsyncResult();
+        it.window = window;
+        Ref finalIteratee = actorOf(it);
+        owner.iteratee = finalIteratee;
+        owner.upstream = null;
+        List<MergedSource<T>> sources = new ArrayList<MergedSource<T>>(enumerators.size());
+        for (int i = 0; i < enumerators.size(); i++) {
+            Enumerator<T> e = enumerators.get(i);
+            e.setWindow(0);
+            e.retainElements();
+            e.enumerator = actorOf(e);
+            sources.add(new MergedSource<T>(e, weights[i]));
         }
-        @Override
-        public boolean hasNext() {
-            return (current < Short.MAX_VALUE);
+        if (sources.isEmpty()) {
+            finalIteratee.tell(EOF.INSTANCE);
+            return res;
+        }
+        Ref merge = actorOf(comparator == null
+            ? new MergeIteratee<T>(sources, finalIteratee, window)
+            : new SortedMergeIteratee<T>(sources, finalIteratee, window, comparator));
+        owner.upstream = merge;
+        for (MergedSource<T> source : sources) {
+            source.enumerator.iteratee = merge;
         }
+        for (MergedSource<T> source : sources) {
+            source.ref.tell(Run.INSTANCE, merge);
+            source.enumerator.onApply();
+        }
+        return res;
     }
-    public static class FloatEnumerator extends Enumerator<Float> {
-        private Float current = 0F;
-        @Override
-        public Option<Float> next() {
-            current = current + 1F;
-            return Option.some(current);
+    private static class MergedSource<T> {
+        private final Enumerator<T> enumerator;
+        private final Ref ref;
+        private final int weight;
+        private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+        private boolean requested = true;
+        private boolean ended = false;
+        public MergedSource(Enumerator<T> enumerator, int weight) {
+            this.enumerator = enumerator;
+            this.ref = enumerator.enumerator;
+            this.weight = weight;
+        }
+    }
+    private static class MergeIteratee<T> implements Forward {
+        final MergedSource<T>[] sources;
+        private final Map<Ref, MergedSource<T>> bySender = new HashMap<Ref, MergedSource<T>>();
+        private final Ref downstream;
+        private final int window;
+        private int credits;
+        private boolean downstreamReady = true;
+        private int cursor = 0;
+        private int live;
+        private boolean eofSent = false;
+        public MergeIteratee(List<MergedSource<T>> sources, Ref downstream, int window) {
+            this.sources = sources.toArray(new MergedSource[sources.size()]);
+            for (MergedSource<T> source : sources) {
+                bySender.put(source.ref, source);
+            }
+            this.downstream = downstream;
+            this.window = window;
+            this.credits = window;
+            this.live = sources.size();
         }
         @Override
-        public boolean hasNext() {
-            return (current < Float.MAX_VALUE);
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            MergedSource<T> source = bySender.get(sender);
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    source.requested = false;
+                    T elem = ((Elem<T>) msg).getOrNull();
+                    if (elem != null) {
+                        buffered(source, Collections.singletonList(elem));
+                    }
+                    request(source, self);
+                    break;
+                }
+                case ELEMS:
+                    source.requested = false;
+                    buffered(source, ((Elems<T>) msg).get());
+                    request(source, self);
+                    break;
+                case EMPTY:
+                    source.requested = false;
+                    if (source.enumerator.isPullBased()) {
+                        request(source, self);
+                    }
+                    break;
+                case EOF:
+                    if (!source.ended) {
+                        source.ended = true;
+                        live--;
+                        ended(source);
+                    }
+                    break;
+                case CONT:
+                    if (window > 0) {
+                        credits++;
+                    } else {
+                        downstreamReady = true;
+                    }
+                    break;
+                case DEMAND:
+                    credits += ((Demand) msg).n;
+                    break;
+                case DONE:
+                case ERROR:
+                    if (source == null) {
+                        for (MergedSource<T> s : sources) {
+                            s.ref.tell(Done.INSTANCE, self);
+                        }
+                        self.tell(PoisonPill.getInstance());
+                    }
+                    return;
+                case OTHER:
+                    if (msg instanceof Failed) {
+                        for (MergedSource<T> s : sources) {
+                            s.ref.tell(Done.INSTANCE, self);
+                        }
+                        downstream.tell(msg, self);
+                        self.tell(PoisonPill.getInstance());
+                        return;
+                    }
+                    break;
+            }
+            emit(self);
+        }
+        void buffered(MergedSource<T> source, List<T> elems) {
+            source.buffer.addAll(elems);
+        }
+        void ended(MergedSource<T> source) {
+        }
+        List<T> take(int limit, Ref self) {
+            List<T> out = new ArrayList<T>();
+            for (int k = 0; k < sources.length && out.size() < limit; k++) {
+                MergedSource<T> source = sources[(cursor + k) % sources.length];
+                for (int j = 0; j < source.weight && out.size() < limit && !source.buffer.isEmpty(); j++) {
+                    out.add(source.buffer.poll());
+                }
+                request(source, self);
+            }
+            cursor = (cursor + 1) % sources.length;
+            return out;
+        }
+        void request(MergedSource<T> source, Ref self) {
+            if (!source.requested && !source.ended && source.buffer.size() < source.weight) {
+                source.requested = true;
+                source.ref.tell(Cont.INSTANCE, self);
+            }
+        }
+        private void emit(Ref self) {
+            while (window > 0 ? credits > 0 : downstreamReady) {
+                List<T> out = take(window > 0 ? credits : 1024, self);
+                if (out.isEmpty()) {
+                    break;
+                }
+                if (out.size() == 1) {
+                    downstream.tell(new Elem<T>(out.get(0)), self);
+                } else {
+                    downstream.tell(new Elems<T>(out), self);
+                }
+                credits -= out.size();
+                downstreamReady = false;
+            }
+            if (live == 0 && !eofSent) {
+                for (MergedSource<T> source : sources) {
+                    if (!source.buffer.isEmpty()) {
+                        return;
+                    }
+                }
+                eofSent = true;
+                downstream.tell(EOF.INSTANCE, self);
+            }
         }
     }
-    public static class DoubleEnumerator extends Enumerator<Double> {
-        private Double current = 0.0;
-        @Override
-        public Option<Double> next() {
-            current = current + 1.0;
-            return Option.some(current);
+    private static class SortedMergeIteratee<T> extends MergeIteratee<T> {
+        private final PriorityQueue<MergedSource<T>> heap;
+        private int waiting;
+        public SortedMergeIteratee(List<MergedSource<T>> sources, Ref downstream, int window, final Comparator<? super T> comparator) {
+            super(sources, downstream, window);
+            this.heap = new PriorityQueue<MergedSource<T>>(sources.size(), new Comparator<MergedSource<T>>() {
+                @Override
+                public int compare(MergedSource<T> a, MergedSource<T> b) {
+                    return comparator.compare(a.buffer.peek(), b.buffer.peek());
+                }
+            });
+            this.waiting = sources.size();
         }
         @Override
-        public boolean hasNext() {
-            return (current < Double.MAX_VALUE);
+        void buffered(MergedSource<T> source, List<T> elems) {
+            if (elems.isEmpty()) {
+                return;
+            }
+            boolean wasEmpty = source.buffer.isEmpty();
+            source.buffer.addAll(elems);
+            if (wasEmpty) {
+                heap.offer(source);
+                waiting--;
+            }
         }
-    }
-    public static class ByteEnumerator extends Enumerator<Byte> {
-        private Byte current = 0;
         @Override
-        public Option<Byte> next() {
-            current = (byte)(current + 1);
-            return Option.some(current);
+        void ended(MergedSource<T> source) {
+            if (source.buffer.isEmpty()) {
+                waiting--;
+            }
         }
         @Override
-        public boolean hasNext() {
-            return (current < Byte.MAX_VALUE);
+        List<T> take(int limit, Ref self) {
+            List<T> out = new ArrayList<T>();
+            while (waiting == 0 && !heap.isEmpty() && out.size() < limit) {
+                MergedSource<T> source = heap.poll();
+                out.add(source.buffer.poll());
+                if (!source.buffer.isEmpty()) {
+                    heap.offer(source);
+                } else if (!source.ended) {
+                    waiting++;
+                }
+                request(source, self);
+            }
+            return out;
         }
     }
-    public static class BigIntegerEnumerator extends Enumerator<BigInteger> {
-        private BigInteger current = BigInteger.ZERO;
-        @Override
-        public Option<BigInteger> next() {
-            current = current.add(BigInteger.ONE);
-            return Option.some(current);
+    private static class SortedMergeEnumerator<T> extends Enumerator<T> {
+        private final List<Enumerator<T>> enumerators;
+        private final int prefetch;
+        private final Comparator<? super T> comparator;
+        private PriorityQueue<Head<T>> heads;
+        public SortedMergeEnumerator(Comparator<? super T> comparator, int prefetch, Enumerator<T>... enumerators) {
+            this.enumerators = Arrays.asList(enumerators);
+            this.prefetch = Math.max(1, prefetch);
+            this.comparator = comparator;
         }
         @Override
-        public boolean hasNext() {
-            return (current.compareTo(BigInteger.valueOf(Long.MAX_VALUE)) == -1);
+        public <O> Promise<O> applyOn(Iteratee<T, O> it, int window) {
+            int[] prefetches = new int[enumerators.size()];
+            Arrays.fill(prefetches, prefetch);
+            return applyMerged(this, enumerators, prefetches, comparator, it, window);
         }
-    }
-    public static class BigDecimalEnumerator extends Enumerator<BigDecimal> {
-        private BigDecimal current = BigDecimal.ZERO;
         @Override
-        public Option<BigDecimal> next() {
-            current = current.add(BigDecimal.ONE);
-            return Option.some(current);
+        public Option<T> next() {
+            if (heads == null) {
+                heads = new PriorityQueue<Head<T>>(Math.max(1, enumerators.size()), new Comparator<Head<T>>() {
+                    @Override
+                    public int compare(Head<T> a, Head<T> b) {
+                        return comparator.compare(a.elem, b.elem);
+                    }
+                });
+                for (Enumerator<T> en : enumerators) {
+                    advance(new Head<T>(en));
+                }
+            }
+            Head<T> head = heads.poll();
+            if (head == null) {
+                return Option.none();
+            }
+            T elem = head.elem;
+            advance(head);
+            return Option.some(elem);
+        }
+        private void advance(Head<T> head) {
+            while (head.source.hasNext()) {
+                Option<T> elem = head.source.next();
+                if (elem.isDefined()) {
+                    head.elem = elem.get();
+                    heads.offer(head);
+                    return;
+                }
+            }
         }
         @Override
         public boolean hasNext() {
-            return (current.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) == -1);
+            if (heads == null) {
+                for (Enumerator en : enumerators) {
+                    if (en.hasNext()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return !heads.isEmpty();
         }
-    }
-    public static class CharacterEnumerator extends Enumerator<Character> {
-        private int current = 0;
         @Override
-        public Option<Character> next() {
-            current = current + 1;
-            return Option.some(new Character(((char)current)));
+        boolean isPullBased() {
+            for (Enumerator e : enumerators) {
+                if (!e.isPullBased()) {
+                    return false;
+                }
+            }
+            return true;
         }
         @Override
-        public boolean hasNext() {
-            return (current < Character.MAX_VALUE);
+        void onApply() {
+            for (Enumerator e : enumerators) {
+                e.onApply();
+            }
         }
     }
-    private static class FromInputStreamEnumerator extends Enumerator<byte[]> {
-        private final InputStream is;
-        private final int chunkSize;
-        private boolean hasnext = true;
-        public FromInputStreamEnumerator(InputStream is, int chunkSize) {
-            this.is = is;
-            this.chunkSize = chunkSize;
+    private static class Head<T> {
+        private final Enumerator<T> source;
+        private T elem;
+        public Head(Enumerator<T> source) {
+            this.source = source;
+        }
+    }
+    private static class ForeachIteratee<T> extends Iteratee<T, Unit> {
+        private final Function<T, Unit> func;
+        public ForeachIteratee(Function<T, Unit> func) {
+            this.func = func;
         }
         @Override
-        public Option<byte[]> next() {
-            byte[] bytes = new byte[chunkSize];
-            //Byte[] copy = new Byte[chunkSize];
-            try {
-                int numRead = is.read(bytes);
-                if (numRead == -1) {
-                    close();
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    T elem = ((Elem<T>) msg).getOrNull();
+                    if (elem != null) {
+                        func.apply(elem);
+                    }
+                    cont(1, sender, self);
+                    break;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                close();
-            }
-            //return Option.some(copy);
-            return Option.some(bytes);
-        }
-        private void close() {
-            hasnext = false;
-            try {
-                is.close();
-            } catch (IOException ex) {
-                ex.printStackTrace();
+                case ELEMS: {
+                    List<T> el = ((Elems<T>) msg).get();
+                    for (int i = 0; i < el.size(); i++) {
+                        func.apply(el.get(i));
+                    }
+                    cont(el.size(), sender, self);
+                    break;
+                }
+                case EOF:
+                    done(Unit.unit(), sender, self);
+                    break;
             }
         }
-        @Override
-        public boolean hasNext() {
-            return hasnext;
+    }
+    private static final class Consumed {
+        private final int partition;
+        private final int count;
+        public Consumed(int partition, int count) {
+            this.partition = partition;
+            this.count = count;
         }
     }
-    private static class FromFileLinesEnumerator extends Enumerator<String> {
-        private final FileInputStream fstream;
-        private final DataInputStream in;
-        private final BufferedReader br;
-        private boolean hasnext = true;
-        public FromFileLinesEnumerator(File f) {
-            try {
-                fstream = new FileInputStream(f);
-                in = new DataInputStream(fstream);
-                br = new BufferedReader(new InputStreamReader(in));
-            } catch (Exception e) { throw new RuntimeException(e); }
+    private static class PartitionEnumerator<T> extends Enumerator<T> {
+        private final int index;
+        private final Ref parent;
+        private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<T>();
+        private volatile boolean closed = false;
+        public PartitionEnumerator(int index, Ref parent) {
+            this.index = index;
+            this.parent = parent;
         }
         @Override
-        public Option<String> next() {
-            String strLine = null;
-            try {
-                strLine = br.readLine();
-            } catch(Exception e) { e.printStackTrace(); }
-            if (strLine == null) {
-                close();
+        public Option<T> next() {
+            T elem = queue.poll();
+            if (elem != null) {
+                parent.tell(new Consumed(index, 1));
             }
-            return Option.some(strLine);
+            return Option.apply(elem);
         }
-        private void close() {
-            hasnext = false;
-            try {
-                br.close();
-                in.close();
-                fstream.close();
-            } catch(Exception e) { e.printStackTrace(); }
+        @Override
+        public List<T> nextBatch(int max) {
+            List<T> batch = new ArrayList<T>(Math.min(max, 1024));
+            T elem = null;
+            while (batch.size() < max && (elem = queue.poll()) != null) {
+                batch.add(elem);
+            }
+            if (!batch.isEmpty()) {
+                parent.tell(new Consumed(index, batch.size()));
+            }
+            return batch;
         }
         @Override
         public boolean hasNext() {
-            return hasnext;
+            return !closed || !queue.isEmpty();
         }
-    }
-    public static class PushEnumerator<T> extends Enumerator<T> {
-        private boolean hasnext = true;
-        private final ConcurrentLinkedQueue<T> pushQueue = new ConcurrentLinkedQueue<T>();
         @Override
-        public Option<T> next() {
-            return Option.apply(pushQueue.poll());
+        boolean isPullBased() {
+            return false;
         }
-        @Override
-        public boolean hasNext() {
-            if (!pushQueue.isEmpty()) {
-                return true;
+        void offer(T elem) {
+            queue.offer(elem);
+        }
+        void signal() {
+            if (enumerator != null) {
+                enumerator.tell(window > 0 ? Run.INSTANCE : Cont.INSTANCE, iteratee);
             }
-            return hasnext;
         }
-        public void push(T elem) {
-            pushQueue.offer(elem);
-            try {
-                if (enumerator != null) {
-                    enumerator.tell(Cont.INSTANCE, iteratee);
-                } else {
-                    //System.out.println("null ...");
-                    //throw new RuntimeException("Enumerator should not be null");
-                }
-            } catch (Exception e) { e.printStackTrace(); }
+        void close() {
+            closed = true;
+            signal();
         }
-        public void stop() {
-            hasnext = false;
-            iteratee.tell(EOF.INSTANCE, enumerator);
-            enumerator.tell(Done.INSTANCE, iteratee);
+        void abort(Throwable cause) {
+            queue.clear();
+            fail(cause);
+            close();
         }
     }
-    private static class CallbackPushEnumerator<T> extends PushEnumerator<T> {
-        private final long every;
-        private final TimeUnit unit;
-        private final Function<Unit, Option<T>> callback;
-        private final AtomicBoolean scheduled = new AtomicBoolean(false);
-        public CallbackPushEnumerator(long every, TimeUnit unit, Function<Unit, Option<T>> callback) {
-            this.every = every;
-            this.unit = unit;
-            this.callback = callback;
+    private static class PartitionIteratee<I, O> extends Iteratee<I, List<O>> implements Retaining {
+        private final int partitions;
+        private final int bound;
+        private final Function<I, ?> key;
+        private final Function<Enumerator<I>, Promise<O>> pipeline;
+        private final int[] buffered;
+        private PartitionEnumerator<I>[] subs;
+        private Ref upstream;
+        private int owed = 0;
+        public PartitionIteratee(int partitions, int bound, Function<I, ?> key, Function<Enumerator<I>, Promise<O>> pipeline) {
+            this.partitions = Math.max(1, partitions);
+            this.bound = Math.max(1, bound);
+            this.key = key;
+            this.pipeline = pipeline;
+            this.buffered = new int[this.partitions];
         }
         @Override
-        public <O> Promise<O> applyOn(Iteratee<T, O> it) {
-            Promise<O> promise = super.applyOn(it);
-            if (!scheduled.get()) {
-                schedule();
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            if (subs == null) {
+                materialize(self);
             }
-            return promise;
-        }
-        private void schedule() {
-            cancel = system().scheduler().schedule(Duration.apply(0, TimeUnit.MILLISECONDS), Duration.apply(every, unit), new Runnable() {
-                @Override
-                public void run() {
-                    Option<T> opt = callback.apply(Unit.unit());
-                    for (T elem : opt) {
-                        push(elem);
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    upstream = sender;
+                    I elem = ((Elem<I>) msg).getOrNull();
+                    if (elem != null) {
+                        subs[route(elem)].signal();
                     }
+                    owed++;
+                    release(self);
+                    break;
                 }
-            });
-            scheduled.set(true);
+                case ELEMS: {
+                    upstream = sender;
+                    List<I> el = ((Elems<I>) msg).get();
+                    boolean[] touched = new boolean[partitions];
+                    for (int i = 0; i < el.size(); i++) {
+                        touched[route(el.get(i))] = true;
+                    }
+                    for (int p = 0; p < partitions; p++) {
+                        if (touched[p]) {
+                            subs[p].signal();
+                        }
+                    }
+                    owed += el.size();
+                    release(self);
+                    break;
+                }
+                case EOF:
+                    for (PartitionEnumerator<I> sub : subs) {
+                        sub.close();
+                    }
+                    sender.tell(Done.INSTANCE, self);
+                    self.tell(PoisonPill.getInstance());
+                    break;
+                case OTHER:
+                    if (msg instanceof Consumed) {
+                        Consumed consumed = (Consumed) msg;
+                        buffered[consumed.partition] -= consumed.count;
+                        release(self);
+                    }
+                    break;
+            }
         }
         @Override
-        void onApply() {
-            if (!scheduled.get()) {
-                schedule();
+        void aborted(Throwable cause) {
+            if (subs != null) {
+                for (PartitionEnumerator<I> sub : subs) {
+                    sub.abort(cause);
+                }
             }
         }
-        private Cancellable cancel;
-        @Override
-        public void stop() {
-            super.stop();
-            if (cancel != null) {
-                cancel.cancel();
+        private int route(I elem) {
+            int p = (key.apply(elem).hashCode() & 0x7fffffff) % partitions;
+            subs[p].offer(elem);
+            buffered[p]++;
+            return p;
+        }
+        private void release(Ref self) {
+            if (owed == 0 || upstream == null) {
+                return;
+            }
+            for (int p = 0; p < partitions; p++) {
+                if (buffered[p] >= bound) {
+                    return;
+                }
             }
+            cont(owed, upstream, self);
+            owed = 0;
         }
-    }
-    private static class InterleavedEnumerators<T> extends Enumerator<T> {
-        private final List<Enumerator<T>> enumerators;
-        private final CountDownLatch latch;
-        private final ActorRef globalIteratee;
-        private ActorRef finalIteratee;
-        public InterleavedEnumerators(Enumerator<T>... enumerators) {
-            this.latch = new CountDownLatch(enumerators.length);
-            Props iterateeProp = new Props().withCreator(new UntypedActorFactory() {
-                public Actor create() {
-                    return new UntypedActor() {
-                        @Override
-                        public void onReceive(Object msg) throws Exception {
-                            if (latch.getCount() == 0) {
-                                self().tell(PoisonPill.getInstance());
-                            }
-                            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                                finalIteratee.tell(e, self());
-                                sender().tell(Cont.INSTANCE, sender());
-                            }
-                            for (EOF eof : F.caseClassOf(EOF.class, msg)) {
-                                latch.countDown();
-                            }
-                        }
-                    };
+        private void materialize(Ref self) {
+            subs = new PartitionEnumerator[partitions];
+            List<Promise<O>> results = new ArrayList<Promise<O>>(partitions);
+            for (int p = 0; p < partitions; p++) {
+                subs[p] = new PartitionEnumerator<I>(p, self);
+                results.add(pipeline.apply(subs[p]));
+            }
+            Promise.waitAll(results).onRedeem(new Action<Promise<List<O>>>() {
+                @Override
+                public void apply(Promise<List<O>> all) {
+                    try {
+                        promise.apply(all.get());
+                    } catch (Exception ex) {
+                        promise.failure(ex);
+                    }
                 }
             });
-            globalIteratee = system().actorOf(iterateeProp, UUID.randomUUID().toString());
-            this.enumerators = new CopyOnWriteArrayList<Enumerator<T>>(Arrays.asList(enumerators));
         }
-        private ConcurrentLinkedQueue<Option<T>> queue = new ConcurrentLinkedQueue<Option<T>>();
+    }
+    private static class MapEnumeratee<I, O> extends Enumeratee<I, O> {
+        public MapEnumeratee(Function<I, O> transform) {
+            super(transform);
+        }
+    }
+    private static ExecutorService computePool;
+    private static synchronized ExecutorService computePool() {
+        if (computePool == null) {
+            computePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("iteratees-compute"));
+        }
+        return computePool;
+    }
+    private static <I, O> Function<I, Promise<O>> onExecutor(final Function<I, O> transform, final Executor executor) {
+        return new Function<I, Promise<O>>() {
+            @Override
+            public Promise<O> apply(final I in) {
+                final Promise<O> promise = new Promise<O>();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            promise.apply(transform.apply(in));
+                        } catch (Throwable t) {
+                            promise.failure(t);
+                        }
+                    }
+                });
+                return promise;
+            }
+        };
+    }
+    private static final class Completed {
+        private final long seq;
+        private final Promise<?> result;
+        public Completed(long seq, Promise<?> result) {
+            this.seq = seq;
+            this.result = result;
+        }
+    }
+    public static class BufferEnumeratee<I> extends Enumeratee<I, I> implements Retaining {
+        private final int size;
+        private final long maxBytes;
+        private final Function<I, Integer> weigher;
+        private final ArrayDeque<I> buffer = new ArrayDeque<I>();
+        private volatile int fill = 0;
+        private volatile long bytes = 0L;
+        private long weighed = 0L;
+        private long weighedBytes = 0L;
+        private Ref fromEnumerator;
+        private Ref toIteratee;
+        private int upstreamCredits = -1;
+        private int credits = -1;
+        private boolean requested = true;
+        private boolean idle = false;
+        private boolean downstreamReady = true;
+        private boolean eof = false;
+        private boolean eofSent = false;
+        public BufferEnumeratee(int size, long maxBytes, Function<I, Integer> weigher) {
+            super(null);
+            this.size = Math.max(1, size);
+            this.maxBytes = maxBytes;
+            this.weigher = weigher;
+        }
+        public int fillLevel() {
+            return fill;
+        }
+        public long bufferedBytes() {
+            return bytes;
+        }
         @Override
-        public Option<T> next() {
-            if (queue.isEmpty()) {
-                for (Enumerator en : enumerators) {
-                    if (en.hasNext()) {
-                        queue.offer(en.next());
+        public void setToIteratee(Ref toIteratee) {
+            super.setToIteratee(toIteratee);
+            this.toIteratee = toIteratee;
+        }
+        @Override
+        public void setFromEnumerator(Ref fromEnumerator) {
+            this.fromEnumerator = fromEnumerator;
+        }
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            if (credits < 0) {
+                credits = window;
+                upstreamCredits = window;
+            }
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    requested = false;
+                    idle = false;
+                    upstreamCredits--;
+                    I elem = ((Elem<I>) msg).getOrNull();
+                    if (elem != null) {
+                        add(elem);
+                    }
+                    break;
+                }
+                case ELEMS: {
+                    requested = false;
+                    idle = false;
+                    List<I> in = ((Elems<I>) msg).get();
+                    upstreamCredits -= in.size();
+                    for (int i = 0; i < in.size(); i++) {
+                        add(in.get(i));
                     }
+                    break;
                 }
+                case EMPTY:
+                    requested = false;
+                    idle = true;
+                    if (window <= 0 && downstreamReady && buffer.isEmpty()) {
+                        downstreamReady = false;
+                        toIteratee.tell(msg, self);
+                    }
+                    break;
+                case EOF:
+                    eof = true;
+                    break;
+                case CONT:
+                    if (window > 0) {
+                        credits++;
+                    } else {
+                        downstreamReady = true;
+                    }
+                    idle = false;
+                    break;
+                case DEMAND:
+                    credits += ((Demand) msg).n;
+                    idle = false;
+                    break;
+                case DONE:
+                case ERROR:
+                    fromEnumerator.tell(msg, self);
+                    self.tell(PoisonPill.getInstance());
+                    return;
             }
-            if (!queue.isEmpty()) {
-                return queue.poll();
+            emit(self);
+            request(self);
+            if (eof && !eofSent && buffer.isEmpty()) {
+                eofSent = true;
+                toIteratee.tell(EOF.INSTANCE, self);
             }
-            return Option.none();
         }
-        @Override
-        public boolean hasNext() {
-            for (Enumerator en : enumerators) {
-                if (en.hasNext()) {
-                    return true;
+        private void add(I elem) {
+            buffer.offer(elem);
+            fill = buffer.size();
+            if (weigher != null) {
+                int weight = weigher.apply(elem);
+                bytes += weight;
+                weighed++;
+                weighedBytes += weight;
+            }
+        }
+        private void emit(Ref self) {
+            while (!buffer.isEmpty() && (window > 0 ? credits > 0 : downstreamReady)) {
+                int count = Math.min(buffer.size(), window > 0 ? credits : 1024);
+                if (count == 1) {
+                    I elem = poll();
+                    toIteratee.tell(new Elem<I>(elem), self);
+                } else {
+                    List<I> out = new ArrayList<I>(count);
+                    for (int i = 0; i < count; i++) {
+                        out.add(poll());
+                    }
+                    toIteratee.tell(new Elems<I>(out), self);
                 }
+                credits -= count;
+                downstreamReady = false;
             }
-            return true;
         }
-        @Override
-        public <O> Promise<O> applyOn(final Iteratee<T, O> it) {
-            Promise<O> res = it.getAsyncResult();
-            finalIteratee = system().actorOf(forwarderActorProps(it), UUID.randomUUID().toString());
-            for (Enumerator e : enumerators) {
-                e.iteratee = globalIteratee;
-                e.enumerator = system().actorOf(forwarderActorProps(e), UUID.randomUUID().toString());
-                e.enumerator.tell(Run.INSTANCE, globalIteratee);
-                e.onApply();
+        private I poll() {
+            I elem = buffer.poll();
+            fill = buffer.size();
+            if (weigher != null) {
+                bytes -= weigher.apply(elem);
             }
-            return res;
+            return elem;
         }
-
-        @Override
-        void onApply() {
-            for (Enumerator e : enumerators) {
-                e.onApply();
+        private void request(Ref self) {
+            if (eof || idle || bytes >= maxBytes) {
+                return;
+            }
+            if (window > 0) {
+                int room = size - buffer.size() - upstreamCredits;
+                // element weights are only known on arrival, so the byte
+                // budget is turned into a count using the average weight
+                if (weigher != null && weighed > 0L) {
+                    long average = Math.max(1L, weighedBytes / weighed);
+                    room = (int) Math.min(room, (maxBytes - bytes) / average - upstreamCredits);
+                }
+                if (room > 0 && (room >= Math.max(1, size / 2) || upstreamCredits <= 0)) {
+                    upstreamCredits += room;
+                    fromEnumerator.tell(new Demand(room), self);
+                }
+            } else if (!requested && buffer.size() < size) {
+                requested = true;
+                fromEnumerator.tell(Cont.INSTANCE, self);
             }
         }
-        void setIteratee(ActorRef ref) {
-            for (Enumerator e : enumerators) {
-                e.setIteratee(ref);
+    }
+    private static class ConflateEnumeratee<I, S> extends Enumeratee<I, S> implements Retaining {
+        private final Function<I, S> seed;
+        private final Function2<S, I, S> merge;
+        private Ref fromEnumerator;
+        private Ref toIteratee;
+        private S state;
+        private boolean pending = false;
+        private int credits = -1;
+        private int received = 0;
+        private boolean downstreamReady = true;
+        private boolean eof = false;
+        public ConflateEnumeratee(Function<I, S> seed, Function2<S, I, S> merge) {
+            super(null);
+            this.seed = seed;
+            this.merge = merge;
+        }
+        @Override
+        public void setToIteratee(Ref toIteratee) {
+            super.setToIteratee(toIteratee);
+            this.toIteratee = toIteratee;
+        }
+        @Override
+        public void setFromEnumerator(Ref fromEnumerator) {
+            this.fromEnumerator = fromEnumerator;
+        }
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            if (credits < 0) {
+                credits = window;
+            }
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    I elem = ((Elem<I>) msg).getOrNull();
+                    if (elem != null) {
+                        add(elem);
+                    }
+                    ack(1, self);
+                    break;
+                }
+                case ELEMS: {
+                    List<I> in = ((Elems<I>) msg).get();
+                    for (int i = 0; i < in.size(); i++) {
+                        add(in.get(i));
+                    }
+                    ack(in.size(), self);
+                    break;
+                }
+                case EOF:
+                    eof = true;
+                    break;
+                case EMPTY:
+                    break;
+                case CONT:
+                    if (window > 0) {
+                        credits++;
+                    } else {
+                        downstreamReady = true;
+                    }
+                    break;
+                case DEMAND:
+                    credits += ((Demand) msg).n;
+                    break;
+                case DONE:
+                case ERROR:
+                    fromEnumerator.tell(msg, self);
+                    self.tell(PoisonPill.getInstance());
+                    return;
+            }
+            if (pending && (window > 0 ? credits > 0 : downstreamReady)) {
+                toIteratee.tell(new Elem<S>(state), self);
+                state = null;
+                pending = false;
+                credits--;
+                downstreamReady = false;
+            }
+            if (eof && !pending) {
+                eof = false;
+                toIteratee.tell(EOF.INSTANCE, self);
             }
         }
-        void setEnumerator(ActorRef ref) {
-            for (Enumerator e : enumerators) {
-                e.setEnumerator(ref);
+        private void add(I elem) {
+            state = pending ? merge.apply(state, elem) : seed.apply(elem);
+            pending = true;
+        }
+        private void ack(int count, Ref self) {
+            if (window <= 0) {
+                fromEnumerator.tell(Cont.INSTANCE, self);
+                return;
+            }
+            received += count;
+            if (received >= Math.max(1, window / 2)) {
+                fromEnumerator.tell(new Demand(received), self);
+                received = 0;
             }
         }
     }
-    private static class ForeachIteratee<T> extends Iteratee<T, Unit> {
-        private final Function<T, Unit> func;
-        public ForeachIteratee(Function<T, Unit> func) {
-            this.func = func;
+    private static class MapAsyncEnumeratee<I, O> extends Enumeratee<I, O> implements Retaining {
+        private static final Object NOTHING = new Object();
+        private final int parallelism;
+        private final boolean ordered;
+        private final Function<I, Promise<O>> transform;
+        private final ArrayDeque<I> inputs = new ArrayDeque<I>();
+        private final Map<Long, Object> completed = new HashMap<Long, Object>();
+        private final ArrayDeque<Object> ready = new ArrayDeque<Object>();
+        private Ref fromEnumerator;
+        private Ref toIteratee;
+        private long nextSeq = 0L;
+        private long nextEmit = 0L;
+        private int running = 0;
+        private boolean upstreamRequested = true;
+        private boolean downstreamReady = true;
+        private boolean eof = false;
+        private boolean eofSent = false;
+        private boolean stopped = false;
+        public MapAsyncEnumeratee(int parallelism, boolean ordered, Function<I, Promise<O>> transform) {
+            super(null);
+            this.parallelism = Math.max(1, parallelism);
+            this.ordered = ordered;
+            this.transform = transform;
         }
         @Override
-        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
-            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                Elem<T> el = (Elem<T>) e;
-                for (T elem : el.get()) {
-                    func.apply(elem);
+        public void setToIteratee(Ref toIteratee) {
+            super.setToIteratee(toIteratee);
+            this.toIteratee = toIteratee;
+        }
+        @Override
+        public void setFromEnumerator(Ref fromEnumerator) {
+            this.fromEnumerator = fromEnumerator;
+        }
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            if (stopped) {
+                return;
+            }
+            switch (typeOf(msg)) {
+                case ELEM: {
+                    upstreamRequested = false;
+                    I elem = ((Elem<I>) msg).getOrNull();
+                    if (elem != null) {
+                        inputs.offer(elem);
+                    } else {
+                        dropped(1, self);
+                    }
+                    break;
                 }
-                sender.tell(Cont.INSTANCE, self);
+                case ELEMS: {
+                    upstreamRequested = false;
+                    List<I> in = ((Elems<I>) msg).get();
+                    for (int i = 0; i < in.size(); i++) {
+                        inputs.offer(in.get(i));
+                    }
+                    break;
+                }
+                case EOF:
+                    eof = true;
+                    break;
+                case EMPTY:
+                    toIteratee.tell(msg, self);
+                    break;
+                case CONT:
+                    if (window > 0) {
+                        fromEnumerator.tell(msg, self);
+                    } else {
+                        downstreamReady = true;
+                    }
+                    break;
+                case DEMAND:
+                    fromEnumerator.tell(msg, self);
+                    break;
+                case DONE:
+                case ERROR:
+                    fromEnumerator.tell(msg, self);
+                    self.tell(PoisonPill.getInstance());
+                    return;
+                case OTHER:
+                    if (msg instanceof Completed) {
+                        running--;
+                        Completed done = (Completed) msg;
+                        if (done.result.isFailure()) {
+                            stopped = true;
+                            fromEnumerator.tell(Done.INSTANCE, self);
+                            failed(done.result.getError(), self);
+                            return;
+                        }
+                        Object out = done.result.getOrNull();
+                        if (out == null) {
+                            dropped(1, self);
+                            out = NOTHING;
+                        }
+                        if (ordered) {
+                            completed.put(done.seq, out);
+                            while (completed.containsKey(nextEmit)) {
+                                Object o = completed.remove(nextEmit++);
+                                if (o != NOTHING) {
+                                    ready.offer(o);
+                                }
+                            }
+                        } else if (out != NOTHING) {
+                            ready.offer(out);
+                        }
+                    }
+                    break;
             }
-            for (EOF e : F.caseClassOf(EOF.class, msg)) {
-                done(Unit.unit(), sender, self);
+            launch(self);
+            emit(self);
+            request(self);
+            if (eof && !eofSent && inputs.isEmpty() && running == 0 && ready.isEmpty()) {
+                eofSent = true;
+                toIteratee.tell(EOF.INSTANCE, self);
             }
         }
-    }
-    private static class MapEnumeratee<I, O> extends Enumeratee<I, O> {
-        public MapEnumeratee(Function<I, O> transform) {
-            super(transform);
+        private void launch(final Ref self) {
+            while (running < parallelism && !inputs.isEmpty()) {
+                final long seq = nextSeq++;
+                Promise<O> promise;
+                try {
+                    promise = transform.apply(inputs.poll());
+                } catch (Throwable t) {
+                    promise = new Promise<O>();
+                    promise.failure(t);
+                }
+                if (promise == null) {
+                    promise = Promise.pure(null);
+                }
+                running++;
+                promise.onRedeem(new Action<Promise<O>>() {
+                    @Override
+                    public void apply(Promise<O> result) {
+                        self.tell(new Completed(seq, result));
+                    }
+                });
+            }
+        }
+        private void emit(Ref self) {
+            if (ready.isEmpty() || (window <= 0 && !downstreamReady)) {
+                return;
+            }
+            downstreamReady = false;
+            if (ready.size() == 1) {
+                toIteratee.tell(new Elem<Object>(ready.poll()), self);
+            } else {
+                List<Object> outs = new ArrayList<Object>(ready);
+                ready.clear();
+                toIteratee.tell(new Elems<Object>(outs), self);
+            }
+        }
+        private void dropped(int count, Ref self) {
+            if (window > 0) {
+                fromEnumerator.tell(new Demand(count), self);
+            }
+        }
+        private void request(Ref self) {
+            if (window <= 0 && !upstreamRequested && !eof
+                    && inputs.size() + running + ready.size() < parallelism) {
+                upstreamRequested = true;
+                fromEnumerator.tell(Cont.INSTANCE, self);
+            }
         }
     }
     private static class CollectEnumeratee<I> extends Enumeratee<I, I> {
@@ -828,66 +4264,147 @@ public class Iteratees {
         }
     }
     public static class HubEnumerator<T> {
-        private final List<ActorRef> iteratees = new CopyOnWriteArrayList<ActorRef>();
+        public static enum Pace { FASTEST, SLOWEST }
+        public static enum Overflow { BLOCK, DROP_OLDEST, DROP_NEWEST, DISCONNECT, CONFLATE }
+        private final List<Subscriber<T>> subscribers = new CopyOnWriteArrayList<Subscriber<T>>();
+        // what a removed subscriber dropped, for as long as its iteratee is reachable
+        private final Map<Iteratee<T, ?>, Long> finished = Collections.synchronizedMap(new WeakHashMap<Iteratee<T, ?>, Long>());
         private final Enumerator<T> fromEnumerator;
-        private ActorRef enumerator;
-        private final ActorRef internalIteratee;
+        private Ref enumerator;
+        private final Ref internalIteratee;
         private boolean start = false;
+        private volatile Pace pace = Pace.SLOWEST;
+        private volatile int window = 0;
+        private boolean requested = true;
+        private boolean eof = false;
         public HubEnumerator(Enumerator<T> fromEnumerator, boolean start) {
             this.fromEnumerator = fromEnumerator;
-            internalIteratee = system().actorOf(new Props().withCreator(new UntypedActorFactory() {
-                public Actor create() {
-                    return new UntypedActor() {
-                        @Override
-                        public void onReceive(Object msg) throws Exception {
-                            for (Cont cont : F.caseClassOf(Cont.class, msg)) {
-                                enumerator.tell(cont, self());
+            fromEnumerator.retainElements();
+            internalIteratee = actorOf(new Forward() {
+                @Override
+                public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+                    switch (typeOf(msg)) {
+                        case CONT: {
+                            Subscriber<T> subscriber = subscriber(sender);
+                            if (subscriber != null) {
+                                subscriber.acked(1);
+                                subscriber.deliver(eof, self);
                             }
-                            for (Done done : F.caseClassOf(Done.class, msg)) {
-                                if (!iteratees.isEmpty()) {
-                                    iteratees.remove(sender());
-                                } else {
-                                    enumerator.tell(done, self());
-                                }
+                            break;
+                        }
+                        case DEMAND: {
+                            Subscriber<T> subscriber = subscriber(sender);
+                            if (subscriber != null) {
+                                subscriber.acked(((Demand) msg).n);
+                                subscriber.deliver(eof, self);
                             }
-                            for (Error error : F.caseClassOf(Error.class, msg)) {
-                                if (!iteratees.isEmpty()) {
-                                    iteratees.remove(sender());
-                                } else {
-                                    enumerator.tell(error, self());
-                                }
+                            break;
+                        }
+                        case DONE:
+                        case ERROR: {
+                            Subscriber<T> subscriber = subscriber(sender);
+                            if (subscriber != null) {
+                                remove(subscriber);
                             }
-                            for (Elem e : F.caseClassOf(Elem.class, msg)) {
-                                for (ActorRef actor : iteratees) {
-                                    actor.tell(e, self());
-                                }
+                            if (subscribers.isEmpty()) {
+                                enumerator.tell(msg, self);
+                                return;
                             }
-                            for (EOF eof : F.caseClassOf(EOF.class, msg)) {
-                                for (ActorRef actor : iteratees) {
-                                    actor.tell(eof, self());
-                                }
+                            break;
+                        }
+                        case ELEM: {
+                            requested = false;
+                            T elem = ((Elem<T>) msg).getOrNull();
+                            if (elem != null) {
+                                publish(elem, self);
                             }
-                            for (Empty empty : F.caseClassOf(Empty.class, msg)) {
-                                for (ActorRef actor : iteratees) {
-                                    actor.tell(empty, self());
-                                }
+                            break;
+                        }
+                        case ELEMS: {
+                            requested = false;
+                            List<T> el = ((Elems<T>) msg).get();
+                            for (int i = 0; i < el.size(); i++) {
+                                publish(el.get(i), self);
                             }
+                            break;
                         }
-                    };
+                        case EOF:
+                            eof = true;
+                            break;
+                        case EMPTY:
+                            requested = false;
+                            if (!HubEnumerator.this.fromEnumerator.isPullBased()) {
+                                return;
+                            }
+                            break;
+                        case OTHER:
+                            if (msg instanceof Failed) {
+                                for (Subscriber<T> subscriber : subscribers) {
+                                    subscriber.ref.tell(msg, self);
+                                    remove(subscriber);
+                                }
+                                self.tell(PoisonPill.getInstance());
+                                return;
+                            }
+                            break;
+                    }
+                    for (Subscriber<T> subscriber : subscribers) {
+                        subscriber.deliver(eof, self);
+                    }
+                    request(self);
                 }
-            }), UUID.randomUUID().toString());
+            });
             if (start) {
                 broadcast();
             }
             this.start = start;
         }
         public HubEnumerator<T> add(final Iteratee<T, ?> iteratee) {
-            iteratees.add(system().actorOf(forwarderActorProps(iteratee), UUID.randomUUID().toString()));
+            return add(iteratee, 1024, Overflow.BLOCK);
+        }
+        public HubEnumerator<T> add(final Iteratee<T, ?> iteratee, int capacity, Overflow overflow) {
+            return add(iteratee, capacity, overflow, null);
+        }
+        public HubEnumerator<T> add(final Iteratee<T, ?> iteratee, int capacity, Function2<T, T, T> merge) {
+            return add(iteratee, capacity, Overflow.CONFLATE, merge);
+        }
+        private HubEnumerator<T> add(Iteratee<T, ?> iteratee, int capacity, Overflow overflow, Function2<T, T, T> merge) {
+            iteratee.window = window;
+            Subscriber<T> subscriber = new Subscriber<T>(iteratee, actorOf(iteratee), capacity, overflow, merge, window);
+            subscribers.add(subscriber);
+            return this;
+        }
+        public HubEnumerator<T> pace(Pace pace) {
+            this.pace = pace;
+            return this;
+        }
+        public HubEnumerator<T> window(int window) {
+            this.window = window;
             return this;
         }
+        public int lag(Iteratee<T, ?> iteratee) {
+            for (Subscriber<T> subscriber : subscribers) {
+                if (subscriber.iteratee == iteratee) {
+                    return subscriber.lag.get();
+                }
+            }
+            return 0;
+        }
+        public long dropped(Iteratee<T, ?> iteratee) {
+            for (Subscriber<T> subscriber : subscribers) {
+                if (subscriber.iteratee == iteratee) {
+                    return subscriber.dropped.get();
+                }
+            }
+            Long dropped = finished.get(iteratee);
+            return dropped == null ? 0L : dropped;
+        }
+        public int connected() {
+            return subscribers.size();
+        }
         public void broadcast() {
             if (!start) {
-                enumerator = system().actorOf(forwarderActorProps(fromEnumerator), UUID.randomUUID().toString());
+                enumerator = actorOf(fromEnumerator);
                 fromEnumerator.enumerator = enumerator;
                 fromEnumerator.iteratee = internalIteratee;
                 enumerator.tell(Run.INSTANCE, internalIteratee);
@@ -898,17 +4415,143 @@ public class Iteratees {
             }
         }
         public void stop() {
-            for (ActorRef actor : iteratees) {
-                actor.tell(PoisonPill.getInstance());
+            for (Subscriber<T> subscriber : subscribers) {
+                subscriber.ref.tell(PoisonPill.getInstance());
             }
             enumerator.tell(PoisonPill.getInstance());
             internalIteratee.tell(PoisonPill.getInstance());
         }
+        private Subscriber<T> subscriber(Ref ref) {
+            for (Subscriber<T> subscriber : subscribers) {
+                if (subscriber.ref.equals(ref)) {
+                    return subscriber;
+                }
+            }
+            return null;
+        }
+        private void publish(T elem, Ref self) {
+            for (Subscriber<T> subscriber : subscribers) {
+                if (!subscriber.offer(elem)) {
+                    remove(subscriber);
+                    subscriber.ref.tell(EOF.INSTANCE, self);
+                }
+            }
+        }
+        private void remove(Subscriber<T> subscriber) {
+            if (subscribers.remove(subscriber)) {
+                finished.put(subscriber.iteratee, subscriber.dropped.get());
+            }
+        }
+        private void request(Ref self) {
+            if (requested || eof) {
+                return;
+            }
+            for (Subscriber<T> subscriber : subscribers) {
+                if (!subscriber.hasRoom() && (pace == Pace.SLOWEST || subscriber.overflow == Overflow.BLOCK)) {
+                    return;
+                }
+            }
+            requested = true;
+            enumerator.tell(Cont.INSTANCE, self);
+        }
+    }
+    private static class Subscriber<T> {
+        private final Iteratee<T, ?> iteratee;
+        private final Ref ref;
+        private final int capacity;
+        private final HubEnumerator.Overflow overflow;
+        private final Function2<T, T, T> merge;
+        private final ArrayDeque<T> buffer = new ArrayDeque<T>();
+        private final AtomicInteger lag = new AtomicInteger(0);
+        private final AtomicLong dropped = new AtomicLong(0L);
+        private final int window;
+        private int inFlight = 0;
+        private int credits;
+        private boolean eofSent = false;
+        public Subscriber(Iteratee<T, ?> iteratee, Ref ref, int capacity, HubEnumerator.Overflow overflow, Function2<T, T, T> merge, int window) {
+            this.iteratee = iteratee;
+            this.ref = ref;
+            this.capacity = Math.max(1, capacity);
+            this.overflow = overflow;
+            this.merge = merge;
+            this.window = window;
+            this.credits = window;
+        }
+        boolean hasRoom() {
+            return buffer.size() < capacity;
+        }
+        boolean offer(T elem) {
+            if (!hasRoom()) {
+                switch (overflow) {
+                    case DISCONNECT:
+                        return false;
+                    case DROP_OLDEST:
+                        buffer.poll();
+                        lag.decrementAndGet();
+                        dropped.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        dropped.incrementAndGet();
+                        return true;
+                    case CONFLATE:
+                        buffer.offerLast(merge.apply(buffer.pollLast(), elem));
+                        dropped.incrementAndGet();
+                        return true;
+                }
+            }
+            buffer.offer(elem);
+            lag.incrementAndGet();
+            return true;
+        }
+        void acked(int count) {
+            if (window > 0) {
+                int consumed = Math.min(count, inFlight);
+                lag.addAndGet(-consumed);
+                inFlight -= consumed;
+                credits += count;
+            } else {
+                lag.addAndGet(-inFlight);
+                inFlight = 0;
+            }
+        }
+        void deliver(boolean eof, Ref self) {
+            if (eofSent || (window > 0 ? credits <= 0 : inFlight > 0)) {
+                return;
+            }
+            if (!buffer.isEmpty()) {
+                int count = window > 0 ? Math.min(credits, buffer.size()) : buffer.size();
+                inFlight += count;
+                if (window > 0) {
+                    credits -= count;
+                }
+                if (count == 1) {
+                    ref.tell(new Elem<T>(buffer.poll()), self);
+                } else {
+                    List<T> batch = new ArrayList<T>(count);
+                    for (int i = 0; i < count; i++) {
+                        batch.add(buffer.poll());
+                    }
+                    ref.tell(new Elems<T>(batch), self);
+                }
+            } else if (eof) {
+                eofSent = true;
+                ref.tell(EOF.INSTANCE, self);
+            }
+        }
+    }
+    private static Object start(int window) {
+        if (window > 0) {
+            return new Demand(window);
+        }
+        return Run.INSTANCE;
+    }
+    private static Ref actorOf(Forward f) {
+        return backend().actorOf(f);
     }
-    private static Props forwarderActorProps(final Forward f) {
+    private static Props forwarderActorProps(final Forward f, final QueueDepth depth) {
         return new Props().withCreator(new UntypedActorFactory() {
             public Actor create() {
-                return new ForwarderActor(f);
+                return new ForwarderActor(f, depth);
             }
         });
     }
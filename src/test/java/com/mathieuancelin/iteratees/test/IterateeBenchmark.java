@@ -0,0 +1,197 @@
+/*
+ *  Copyright 2011-2012 Mathieu ANCELIN
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *  under the License.
+ */
+
+package com.mathieuancelin.iteratees.test;
+
+import com.mathieuancelin.iteratees.F.Function;
+import com.mathieuancelin.iteratees.F.Function2;
+import com.mathieuancelin.iteratees.F.Promise;
+import com.mathieuancelin.iteratees.F.Unit;
+import com.mathieuancelin.iteratees.Iteratees;
+import com.mathieuancelin.iteratees.Iteratees.Backend;
+import com.mathieuancelin.iteratees.Iteratees.Elem;
+import com.mathieuancelin.iteratees.Iteratees.Enumeratee;
+import com.mathieuancelin.iteratees.Iteratees.Enumerator;
+import com.mathieuancelin.iteratees.Iteratees.ExecutorBackend;
+import com.mathieuancelin.iteratees.Iteratees.Iteratee;
+import com.mathieuancelin.iteratees.Iteratees.Ref;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+// run with mvn test -Pbenchmark
+public class IterateeBenchmark {
+
+    private static interface BackendRun {
+        public String run(Backend backend) throws Exception;
+    }
+
+    private static void onEachBackend(String name, BackendRun run) throws Exception {
+        Backend akka = Iteratees.backend();
+        Backend executor = new ExecutorBackend();
+        try {
+            for (Backend backend : Arrays.asList(akka, executor)) {
+                Iteratees.useBackend(backend);
+                long start = System.nanoTime();
+                String result = run.run(backend);
+                System.out.println(name + " on " + backend.getClass().getSimpleName() + " : "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms " + result);
+            }
+        } finally {
+            Iteratees.useBackend(akka);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void benchPipelines() throws Exception {
+        onEachBackend("2000 map pipelines", new BackendRun() {
+            @Override
+            public String run(Backend backend) throws Exception {
+                final AtomicInteger count = new AtomicInteger(0);
+                List<Promise<Unit>> promises = new ArrayList<Promise<Unit>>();
+                for (int i = 0; i < 2000; i++) {
+                    promises.add(Enumerator.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10)
+                        .through(Enumeratee.map(new Function<Integer, Integer>() {
+                            @Override
+                            public Integer apply(Integer i) {
+                                return i * 2;
+                            }
+                        })).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                            @Override
+                            public Unit apply(Integer i) {
+                                count.incrementAndGet();
+                                return Unit.unit();
+                            }
+                        })));
+                }
+                Promise.waitAll(promises).get(20, TimeUnit.SECONDS);
+                return "(" + count.get() + " elements)";
+            }
+        });
+    }
+
+    @Test
+    public void benchApplyOn() throws Exception {
+        onEachBackend("20000 applyOn of eof", new BackendRun() {
+            @Override
+            public String run(Backend backend) throws Exception {
+                int runs = 20000;
+                List<Promise<Unit>> promises = new ArrayList<Promise<Unit>>(runs);
+                long start = System.nanoTime();
+                for (int i = 0; i < runs; i++) {
+                    promises.add(Enumerator.<Integer>eof().applyOn(Iteratee.<Integer>ignore()));
+                }
+                long created = System.nanoTime() - start;
+                Promise.waitAll(promises).get(20, TimeUnit.SECONDS);
+                long completed = System.nanoTime() - start;
+                return "(applyOn " + (created / runs) + " ns, applyOn to done " + (completed / runs) + " ns)";
+            }
+        });
+    }
+
+    @Test
+    public void benchPromiseCombinators() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            for (final int count : new int[] { 10000, 100000 }) {
+                final List<Promise<Integer>> promises = new ArrayList<Promise<Integer>>(count);
+                for (int i = 0; i < count; i++) {
+                    promises.add(new Promise<Integer>());
+                }
+                long start = System.nanoTime();
+                Promise<List<Integer>> all = Promise.sequence(promises);
+                Promise<Long> sum = Promise.reduce(promises, 0L, new Function2<Long, Integer, Long>() {
+                    @Override
+                    public Long apply(Long acc, Integer i) {
+                        return acc + i;
+                    }
+                });
+                for (int t = 0; t < 4; t++) {
+                    final int offset = t;
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            for (int i = offset; i < count; i += 4) {
+                                promises.get(i).apply(i);
+                            }
+                        }
+                    });
+                }
+                all.get(20, TimeUnit.SECONDS);
+                sum.get(20, TimeUnit.SECONDS);
+                System.out.println("Promise.sequence : " + count + " promises in "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void benchTimeouts() throws Exception {
+        int count = 100000;
+        List<Promise<Integer>> sources = new ArrayList<Promise<Integer>>(count);
+        List<Promise<Integer>> bounded = new ArrayList<Promise<Integer>>(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            Promise<Integer> source = new Promise<Integer>();
+            sources.add(source);
+            bounded.add(source.within(i % 2 == 0 ? 1 : 60000, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 1; i < count; i += 2) {
+            sources.get(i).apply(i);
+        }
+        for (int i = 0; i < count; i++) {
+            bounded.get(i).await(5, TimeUnit.SECONDS);
+        }
+        System.out.println("Promise.within : " + count + " timeouts in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    @Test
+    public void benchDispatchAllocation() throws Exception {
+        Ref nobody = new Ref() {
+            @Override
+            public void tell(Object msg) {}
+            @Override
+            public void tell(Object msg, Ref sender) {}
+        };
+        Iteratee<Integer, Unit> foreach = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                return Unit.unit();
+            }
+        });
+        Enumeratee<Integer, Integer> map = Enumeratee.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return i;
+            }
+        });
+        map.setFromEnumerator(nobody);
+        map.setToIteratee(nobody);
+        Elem<Integer> elem = new Elem<Integer>(42);
+        System.out.println("ForeachIteratee : " + IterateeTest.allocatedBytesPerMessage(foreach, elem, nobody)
+                + " bytes/elem, Enumeratee : " + IterateeTest.allocatedBytesPerMessage(map, elem, nobody) + " bytes/elem");
+    }
+}
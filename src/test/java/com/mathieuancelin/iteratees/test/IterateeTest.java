@@ -22,25 +22,67 @@ import akka.actor.ActorRef;
 import com.mathieuancelin.iteratees.F;
 import com.mathieuancelin.iteratees.F.Action;
 import com.mathieuancelin.iteratees.F.Function;
+import com.mathieuancelin.iteratees.F.Function2;
+import com.mathieuancelin.iteratees.F.IntFunction;
+import com.mathieuancelin.iteratees.F.IntPredicate;
 import com.mathieuancelin.iteratees.F.Option;
 import com.mathieuancelin.iteratees.F.Promise;
 import com.mathieuancelin.iteratees.F.Unit;
+import com.mathieuancelin.iteratees.Iteratees;
+import com.mathieuancelin.iteratees.Iteratees.ActorEnumeratee;
+import com.mathieuancelin.iteratees.Iteratees.ActorIteratee;
+import com.mathieuancelin.iteratees.Iteratees.AkkaBackend;
+import com.mathieuancelin.iteratees.Iteratees.Backend;
+import com.mathieuancelin.iteratees.Iteratees.Blocking;
+import com.mathieuancelin.iteratees.Iteratees.BufferEnumeratee;
 import com.mathieuancelin.iteratees.Iteratees.CharacterEnumerator;
 import com.mathieuancelin.iteratees.Iteratees.Cont;
+import com.mathieuancelin.iteratees.Iteratees.Done;
 import com.mathieuancelin.iteratees.Iteratees.EOF;
 import com.mathieuancelin.iteratees.Iteratees.Elem;
+import com.mathieuancelin.iteratees.Iteratees.Elems;
 import com.mathieuancelin.iteratees.Iteratees.Enumeratee;
 import com.mathieuancelin.iteratees.Iteratees.Enumerator;
+import com.mathieuancelin.iteratees.Iteratees.ExecutorBackend;
+import com.mathieuancelin.iteratees.Iteratees.Forward;
 import com.mathieuancelin.iteratees.Iteratees.HubEnumerator;
 import com.mathieuancelin.iteratees.Iteratees.Iteratee;
 import com.mathieuancelin.iteratees.Iteratees.PushEnumerator;
+import com.mathieuancelin.iteratees.Iteratees.Ref;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import junit.framework.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 
 public class IterateeTest {
@@ -131,6 +173,507 @@ public class IterateeTest {
         Assert.assertEquals(0, latch.getCount());
     }
     
+    @Test
+    public void testBatchedEnumerator() throws Exception {
+        final AtomicLong sum = new AtomicLong(0);
+        final AtomicInteger count = new AtomicInteger(0);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 1; i <= 10000; i++) {
+            values.add(i);
+        }
+        Promise<Unit> promise = Enumerator.of(values)
+            .through(Enumeratee.collect(new Function<Integer, Option<Integer>>() {
+                @Override
+                public Option<Integer> apply(Integer i) {
+                    if (i % 2 == 0) {
+                        return Option.some(i);
+                    }
+                    return Option.none();
+                }
+            })).batched(64).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                @Override
+                public Unit apply(Integer i) {
+                    sum.addAndGet(i);
+                    count.incrementAndGet();
+                    return Unit.unit();
+                }
+            }));
+        promise.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(5000, count.get());
+        Assert.assertEquals(25005000L, sum.get());
+    }
+    
+    @Test
+    public void testCreditWindow() throws Exception {
+        final AtomicInteger count = new AtomicInteger(0);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 1; i <= 10000; i++) {
+            values.add(i);
+        }
+        Promise<Unit> promise = Enumerator.of(values)
+            .through(Enumeratee.collect(new Function<Integer, Option<Integer>>() {
+                @Override
+                public Option<Integer> apply(Integer i) {
+                    if (i % 3 == 0) {
+                        return Option.some(i);
+                    }
+                    return Option.none();
+                }
+            })).batched(8).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                @Override
+                public Unit apply(Integer i) {
+                    count.incrementAndGet();
+                    return Unit.unit();
+                }
+            }), 64);
+        promise.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(3333, count.get());
+        final CountDownLatch latch = new CountDownLatch(100);
+        PushEnumerator<Integer> pushEnum = Enumerator.unicast(Integer.class);
+        pushEnum.applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                latch.countDown();
+                return Unit.unit();
+            }
+        }), 16);
+        for (int i = 0; i < 100; i++) {
+            pushEnum.push(i);
+        }
+        latch.await(10, TimeUnit.SECONDS);
+        pushEnum.stop();
+        Assert.assertEquals(0, latch.getCount());
+    }
+    
+    @Test
+    public void testBoundedPushEnumerator() throws Exception {
+        final PushEnumerator<Integer> bounded = Enumerator.unicast(Integer.class, 8);
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(bounded.offer(i));
+        }
+        Assert.assertFalse(bounded.offer(8));
+        Promise<Unit> queued = bounded.pushAsync(8);
+        Assert.assertFalse(queued.isDone());
+        final AtomicLong sum = new AtomicLong(0L);
+        final CountDownLatch received = new CountDownLatch(4 * 10000 + 9);
+        bounded.batched(32).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                sum.addAndGet(i);
+                received.countDown();
+                return Unit.unit();
+            }
+        }), 16);
+        queued.get(10, TimeUnit.SECONDS);
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < 4; p++) {
+            Thread producer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        bounded.push(1);
+                    }
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join(10000);
+        }
+        Assert.assertTrue(received.await(10, TimeUnit.SECONDS));
+        bounded.stop();
+        Assert.assertEquals(36L + 40000L, sum.get());
+    }
+
+    @Test
+    public void testDemandDrivenGenerate() throws Exception {
+        final AtomicInteger produced = new AtomicInteger(0);
+        final AtomicInteger maxDemand = new AtomicInteger(0);
+        Function<Integer, List<Integer>> callback = new Function<Integer, List<Integer>>() {
+            @Override
+            public List<Integer> apply(Integer demand) {
+                maxDemand.set(Math.max(maxDemand.get(), demand));
+                List<Integer> elems = new ArrayList<Integer>(demand);
+                for (int i = 0; i < demand; i++) {
+                    elems.add(produced.incrementAndGet());
+                }
+                return elems;
+            }
+        };
+        final AtomicInteger consumed = new AtomicInteger(0);
+        final PushEnumerator<Integer> fast = Enumerator.generate(100, TimeUnit.MICROSECONDS, 1, 4096, true, callback);
+        fast.batched(64).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                if (consumed.incrementAndGet() == 2000) {
+                    fast.stop();
+                }
+                return Unit.unit();
+            }
+        }), 128).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(produced.get(), consumed.get());
+        Assert.assertTrue(consumed.get() >= 2000);
+        Assert.assertTrue("demand should follow the batch size, got " + maxDemand.get(), maxDemand.get() <= 64);
+
+        produced.set(0);
+        consumed.set(0);
+        maxDemand.set(0);
+        final PushEnumerator<Integer> paced = Enumerator.generate(1, TimeUnit.MILLISECONDS, 2, 64, false, callback);
+        long start = System.nanoTime();
+        paced.batched(16).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                if (consumed.incrementAndGet() == 100) {
+                    paced.stop();
+                }
+                return Unit.unit();
+            }
+        })).get(10, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Assert.assertEquals(produced.get(), consumed.get());
+        Assert.assertTrue(maxDemand.get() <= 16);
+        Assert.assertTrue("100 elements at 2 per millisecond took " + elapsed + " ms", elapsed >= 49L);
+    }
+
+    @Test
+    public void testFusedEnumerator() throws Exception {
+        final AtomicLong sum = new AtomicLong(0);
+        List<Integer> values = new ArrayList<Integer>();
+        for (int i = 1; i <= 100000; i++) {
+            values.add(i);
+        }
+        Promise<Unit> promise = Enumerator.of(values)
+            .through(Enumeratee.map(new Function<Integer, Long>() {
+                @Override
+                public Long apply(Integer i) {
+                    return i * 2L;
+                }
+            })).applyOnSync(Iteratee.foreach(new Function<Long, Unit>() {
+                @Override
+                public Unit apply(Long l) {
+                    sum.addAndGet(l);
+                    return Unit.unit();
+                }
+            }));
+        Assert.assertTrue(promise.isDone());
+        Assert.assertEquals(10000100000L, sum.get());
+        Promise<String> result = Enumerator.of("Mathieu", "Kevin", "Jeremy")
+                    .applyOnSync(new ListIteratee());
+        Assert.assertEquals("MathieuKevinJeremy", result.get());
+    }
+    
+    @Test
+    public void testActorRefIteratee() throws Exception {
+        Backend akka = Iteratees.backend();
+        Backend tracked = new AkkaBackend(true);
+        Backend executor = new ExecutorBackend();
+        try {
+            for (final Backend backend : Arrays.asList(akka, tracked, executor)) {
+                Iteratees.useBackend(backend);
+                final AtomicInteger minDepth = new AtomicInteger(0);
+                Promise<String> result = Enumerator.of("Mathieu", "Kevin", "Jeremy")
+                    .through(new ActorEnumeratee<String, String>() {
+                        private ActorRef to;
+                        private ActorRef from;
+                        @Override
+                        public void setToIteratee(ActorRef toIteratee) {
+                            to = toIteratee;
+                        }
+                        @Override
+                        public void setFromEnumerator(ActorRef fromEnumerator) {
+                            from = fromEnumerator;
+                        }
+                        @Override
+                        public void onReceive(Object msg, ActorRef sender, ActorRef self) throws Exception {
+                            for (Integer depth : backend.queueDepths().values()) {
+                                minDepth.set(Math.min(minDepth.get(), depth));
+                            }
+                            for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                                to.tell(new Elem<String>(((Elem<String>) e).getOrNull().toUpperCase()), self);
+                            }
+                            for (EOF e : F.caseClassOf(EOF.class, msg)) {
+                                to.tell(e, self);
+                            }
+                            for (Cont c : F.caseClassOf(Cont.class, msg)) {
+                                from.tell(c, self);
+                            }
+                            for (Done d : F.caseClassOf(Done.class, msg)) {
+                                from.tell(d, self);
+                            }
+                        }
+                    }).applyOn(new ListIteratee());
+                Assert.assertEquals("MATHIEUKEVINJEREMY", result.get(10, TimeUnit.SECONDS));
+                Assert.assertEquals(0, minDepth.get());
+            }
+        } finally {
+            Iteratees.useBackend(akka);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecutorBackend() throws Exception {
+        Backend akka = Iteratees.backend();
+        Backend executor = new ExecutorBackend();
+        try {
+            for (Backend backend : Arrays.asList(akka, executor)) {
+                Iteratees.useBackend(backend);
+                final AtomicInteger count = new AtomicInteger(0);
+                List<Promise<Unit>> promises = new ArrayList<Promise<Unit>>();
+                for (int i = 0; i < 100; i++) {
+                    promises.add(Enumerator.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10)
+                        .through(Enumeratee.map(new Function<Integer, Integer>() {
+                            @Override
+                            public Integer apply(Integer i) {
+                                return i * 2;
+                            }
+                        })).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                            @Override
+                            public Unit apply(Integer i) {
+                                count.incrementAndGet();
+                                return Unit.unit();
+                            }
+                        })));
+                }
+                Promise.waitAll(promises).get(20, TimeUnit.SECONDS);
+                Assert.assertEquals(1000, count.get());
+            }
+        } finally {
+            Iteratees.useBackend(akka);
+            executor.shutdown();
+        }
+    }
+    
+    private static class BlockingCountEnumerator extends Enumerator<Integer> implements Blocking {
+        private final Set<Thread> threads;
+        private int current = 0;
+        public BlockingCountEnumerator(Set<Thread> threads) {
+            this.threads = threads;
+        }
+        @Override
+        public boolean hasNext() {
+            return current < 200;
+        }
+        @Override
+        public Option<Integer> next() {
+            threads.add(Thread.currentThread());
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Option.some(current++);
+        }
+    }
+
+    @Test
+    public void testBlockingDispatcher() throws Exception {
+        Backend akka = Iteratees.backend();
+        Backend tracked = new AkkaBackend(true);
+        Backend executor = new ExecutorBackend();
+        try {
+            for (Backend backend : Arrays.asList(akka, tracked, executor)) {
+                Iteratees.useBackend(backend);
+                final Set<Thread> blocking = Collections.synchronizedSet(new HashSet<Thread>());
+                final Set<Thread> computing = Collections.synchronizedSet(new HashSet<Thread>());
+                final AtomicInteger count = new AtomicInteger(0);
+                List<Promise<Unit>> promises = new ArrayList<Promise<Unit>>();
+                for (int i = 0; i < 4; i++) {
+                    promises.add(new BlockingCountEnumerator(blocking).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                        @Override
+                        public Unit apply(Integer i) {
+                            computing.add(Thread.currentThread());
+                            count.incrementAndGet();
+                            return Unit.unit();
+                        }
+                    })));
+                }
+                Map<String, Integer> depths = backend.queueDepths();
+                Assert.assertTrue(depths.containsKey(Iteratees.DEFAULT_DISPATCHER));
+                Assert.assertTrue(depths.containsKey(Iteratees.BLOCKING_DISPATCHER));
+                Promise.waitAll(promises).get(20, TimeUnit.SECONDS);
+                Assert.assertEquals(800, count.get());
+                Assert.assertFalse(blocking.isEmpty());
+                for (Thread thread : blocking) {
+                    Assert.assertFalse(computing.contains(thread));
+                }
+                Thread.sleep(100);
+                Assert.assertEquals(Integer.valueOf(0), backend.queueDepths().get(Iteratees.BLOCKING_DISPATCHER));
+            }
+        } finally {
+            Iteratees.useBackend(akka);
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testApplyOnEof() throws Exception {
+        Backend akka = Iteratees.backend();
+        Backend executor = new ExecutorBackend();
+        try {
+            for (Backend backend : Arrays.asList(akka, executor)) {
+                Iteratees.useBackend(backend);
+                List<Promise<Unit>> promises = new ArrayList<Promise<Unit>>();
+                for (int i = 0; i < 100; i++) {
+                    promises.add(Enumerator.<Integer>eof().applyOn(Iteratee.<Integer>ignore()));
+                }
+                Promise.waitAll(promises).get(20, TimeUnit.SECONDS);
+                for (Promise<Unit> promise : promises) {
+                    Assert.assertTrue(promise.isDone());
+                }
+            }
+        } finally {
+            Iteratees.useBackend(akka);
+            executor.shutdown();
+        }
+    }
+    
+    private static class RecordingRef implements Ref {
+        private final List<Object> messages = new ArrayList<Object>();
+        @Override
+        public void tell(Object msg) {
+            messages.add(msg);
+        }
+        @Override
+        public void tell(Object msg, Ref sender) {
+            messages.add(msg);
+        }
+    }
+
+    @Test
+    public void testSignalDispatch() throws Exception {
+        Assert.assertEquals(Iteratees.SignalType.ELEM, Iteratees.typeOf(new Elem<Integer>(1)));
+        Assert.assertEquals(Iteratees.SignalType.ELEMS, Iteratees.typeOf(new Elems<Integer>(Arrays.asList(1, 2))));
+        Assert.assertEquals(Iteratees.SignalType.EOF, Iteratees.typeOf(EOF.INSTANCE));
+        Assert.assertEquals(Iteratees.SignalType.CONT, Iteratees.typeOf(Cont.INSTANCE));
+        Assert.assertEquals(Iteratees.SignalType.DONE, Iteratees.typeOf(Done.INSTANCE));
+        Assert.assertEquals(Iteratees.SignalType.OTHER, Iteratees.typeOf("not a signal"));
+        final List<Integer> seen = new ArrayList<Integer>();
+        Iteratee<Integer, Unit> foreach = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                seen.add(i);
+                return Unit.unit();
+            }
+        });
+        RecordingRef upstream = new RecordingRef();
+        RecordingRef self = new RecordingRef();
+        foreach.onReceive(new Elem<Integer>(42), upstream, self);
+        foreach.onReceive(new Elems<Integer>(Arrays.asList(1, 2)), upstream, self);
+        Assert.assertEquals(Arrays.asList(42, 1, 2), seen);
+        Assert.assertEquals(Arrays.<Object>asList(Cont.INSTANCE, Cont.INSTANCE), upstream.messages);
+        Assert.assertTrue(self.messages.isEmpty());
+
+        RecordingRef from = new RecordingRef();
+        RecordingRef to = new RecordingRef();
+        Enumeratee<Integer, Integer> map = Enumeratee.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return i % 2 == 0 ? i * 10 : null;
+            }
+        });
+        map.setFromEnumerator(from);
+        map.setToIteratee(to);
+        map.onReceive(new Elem<Integer>(4), from, self);
+        map.onReceive(new Elem<Integer>(3), from, self);
+        map.onReceive(Cont.INSTANCE, to, self);
+        Assert.assertEquals(1, to.messages.size());
+        Assert.assertEquals(Integer.valueOf(40), ((Elem<Integer>) to.messages.get(0)).getOrNull());
+        Assert.assertEquals(Arrays.<Object>asList(Cont.INSTANCE, Cont.INSTANCE), from.messages);
+    }
+
+    @Test
+    public void testDispatchAllocation() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+            && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled());
+        Ref nobody = new Ref() {
+            @Override
+            public void tell(Object msg) {}
+            @Override
+            public void tell(Object msg, Ref sender) {}
+        };
+        Iteratee<Integer, Unit> foreach = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                return Unit.unit();
+            }
+        });
+        Enumeratee<Integer, Integer> map = Enumeratee.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return i;
+            }
+        });
+        map.setFromEnumerator(nobody);
+        map.setToIteratee(nobody);
+        Elem<Integer> elem = new Elem<Integer>(42);
+        List<Integer> batch = new ArrayList<Integer>();
+        for (int i = 0; i < 64; i++) {
+            batch.add(42);
+        }
+        Elems<Integer> elems = new Elems<Integer>(batch);
+        double foreachBytes = allocatedBytesPerMessage(foreach, elem, nobody);
+        double mapBytes = allocatedBytesPerMessage(map, elem, nobody);
+        double mapBatchBytes = allocatedBytesPerMessage(map, elems, nobody) / batch.size();
+        Assert.assertTrue("foreach allocated " + foreachBytes + " bytes per elem", foreachBytes < 8.0);
+        Assert.assertTrue("map allocated " + mapBytes + " bytes per elem", mapBytes < 32.0);
+        Assert.assertTrue("map allocated " + mapBatchBytes + " bytes per batched elem", mapBatchBytes < 8.0);
+    }
+
+    // the smallest of a few warmed up rounds, so a stray allocation
+    // from the JIT or a background agent does not fail the measure
+    static double allocatedBytesPerMessage(Forward stage, Object msg, Ref ref) throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return Double.NaN;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        int runs = 200000;
+        for (int i = 0; i < runs; i++) {
+            stage.onReceive(msg, ref, ref);
+        }
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long before = allocations.getThreadAllocatedBytes(id);
+            for (int i = 0; i < runs; i++) {
+                stage.onReceive(msg, ref, ref);
+            }
+            best = Math.min(best, (allocations.getThreadAllocatedBytes(id) - before) / (double) runs);
+        }
+        return best;
+    }
+
+    @Test
+    public void testPrimitiveEnumerators() throws Exception {
+        Promise<Long> sum = Enumerator.range(0, 1000000, 1)
+            .through(Enumeratee.filterInts(new IntPredicate() {
+                @Override
+                public boolean apply(int i) {
+                    return i % 2 == 0;
+                }
+            }), Enumeratee.mapInts(new IntFunction() {
+                @Override
+                public int apply(int i) {
+                    return i / 2;
+                }
+            })).applyOn(Iteratee.sumInts());
+        Assert.assertEquals(124999750000L, sum.get(10, TimeUnit.SECONDS).longValue());
+        Assert.assertEquals(Long.valueOf(1L), Enumerator.range(100L, 0L, -3L)
+                .applyOnSync(Iteratee.minLongs()).get().get());
+        Assert.assertEquals(Long.valueOf(100L), Enumerator.range(100L, 0L, -3L)
+                .applyOnSync(Iteratee.maxLongs()).get().get());
+        long[] histogram = Enumerator.range(0.0, 10.0, 0.5).applyOnSync(Iteratee.histogramDoubles(0.0, 10.0, 5)).get();
+        Assert.assertEquals(5, histogram.length);
+        for (long count : histogram) {
+            Assert.assertEquals(4L, count);
+        }
+        Assert.assertTrue(Enumerator.range(0, 0, 1).applyOnSync(Iteratee.maxInts()).get().isEmpty());
+    }
+    
     @Test
     public void testFileEnumerator() throws Exception {
         final AtomicInteger count = new AtomicInteger(0);
@@ -149,6 +692,172 @@ public class IterateeTest {
         Assert.assertTrue(count.get() > 0);
     }
     
+    @Test
+    public void testFileChannelEnumerator() throws Exception {
+        File pom = new File("pom.xml");
+        for (boolean reuse : new boolean[] { false, true }) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Promise<Unit> promise = Enumerator.fromFileChannel(pom, 100, reuse)
+                .applyOn(Iteratee.foreach(new Function<ByteBuffer, Unit>() {
+                    @Override
+                    public Unit apply(ByteBuffer buffer) {
+                        byte[] bytes = new byte[buffer.remaining()];
+                        buffer.get(bytes);
+                        out.write(bytes, 0, bytes.length);
+                        return Unit.unit();
+                    }
+                }), 8);
+            promise.get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(pom.length(), out.size());
+            Assert.assertEquals(readFully(pom), new String(out.toByteArray(), "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testFileChannelReuseWithRetainingStage() throws Exception {
+        File pom = new File("pom.xml");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Promise<Unit> promise = Enumerator.fromFileChannel(pom, 16, true)
+            .through(Enumeratee.<ByteBuffer>buffer(256))
+            .applyOn(Iteratee.foreach(new Function<ByteBuffer, Unit>() {
+                @Override
+                public Unit apply(ByteBuffer buffer) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes, 0, bytes.length);
+                    return Unit.unit();
+                }
+            }), 4);
+        promise.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(readFully(pom), new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testNonBlockingChannelRejected() throws Exception {
+        Pipe pipe = Pipe.open();
+        try {
+            pipe.source().configureBlocking(false);
+            Enumerator.fromChannel(pipe.source(), 16);
+            Assert.fail("non blocking channels should be rejected");
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            pipe.source().close();
+            pipe.sink().close();
+        }
+    }
+
+    @Test
+    public void testChannelReadFailurePropagates() throws Exception {
+        ReadableByteChannel broken = new ReadableByteChannel() {
+            private int reads = 0;
+            private boolean open = true;
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                if (reads++ > 0) {
+                    throw new IOException("disk gone");
+                }
+                dst.put((byte) 42);
+                return 1;
+            }
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+        final AtomicInteger received = new AtomicInteger(0);
+        Promise<Unit> promise = Enumerator.fromChannel(broken, 16).applyOn(Iteratee.foreach(new Function<ByteBuffer, Unit>() {
+            @Override
+            public Unit apply(ByteBuffer buffer) {
+                received.addAndGet(buffer.remaining());
+                return Unit.unit();
+            }
+        }));
+        try {
+            promise.get(10, TimeUnit.SECONDS);
+            Assert.fail("the read error should fail the iteratee");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertFalse(broken.isOpen());
+        Assert.assertEquals(0, received.get());
+    }
+
+    @Test
+    public void testMappedFileEnumerator() throws Exception {
+        File pom = new File("pom.xml");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final AtomicInteger chunks = new AtomicInteger(0);
+        Promise<Unit> promise = Enumerator.fromMappedFile(pom, 128)
+            .applyOn(Iteratee.foreach(new Function<ByteBuffer, Unit>() {
+                @Override
+                public Unit apply(ByteBuffer buffer) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes, 0, bytes.length);
+                    chunks.incrementAndGet();
+                    return Unit.unit();
+                }
+            }), 16);
+        promise.get(10, TimeUnit.SECONDS);
+        Assert.assertEquals((pom.length() + 127) / 128, chunks.get());
+        Assert.assertEquals(readFully(pom), new String(out.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void testMappedFileRejectsEmptyChunks() throws Exception {
+        File pom = new File("pom.xml");
+        for (int chunkSize : new int[] { 0, -1 }) {
+            try {
+                Enumerator.fromMappedFile(pom, chunkSize);
+                Assert.fail("chunk size " + chunkSize + " should be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testMappedFileFailurePropagates() throws Exception {
+        for (boolean staged : new boolean[] { false, true }) {
+            File f = File.createTempFile("iteratee-mapped", ".bin");
+            f.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.setLength(1000);
+            Enumerator<ByteBuffer> enumerator = Enumerator.fromMappedFile(f, 100);
+            raf.setLength(10);
+            raf.close();
+            if (staged) {
+                enumerator = enumerator.through(Enumeratee.<ByteBuffer>buffer(8));
+            }
+            Promise<Unit> promise = enumerator.applyOn(Iteratee.foreach(new Function<ByteBuffer, Unit>() {
+                @Override
+                public Unit apply(ByteBuffer buffer) {
+                    return Unit.unit();
+                }
+            }));
+            try {
+                promise.get(10, TimeUnit.SECONDS);
+                Assert.fail("the mapping error should fail the iteratee");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    private static String readFully(File file) throws Exception {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+    
     @Test
     public void testFileLineEnumerator() throws Exception {
         Enumerator<String> fileEnum = Enumerator.fromFileLines(new File("src/main/java/com/mathieuancelin/iteratees/Iteratees.java"));
@@ -190,6 +899,183 @@ public class IterateeTest {
         Assert.assertEquals(0, latch.getCount());
     }
     
+    @Test
+    public void testWeightedInterleave() throws Exception {
+        Enumerator<Integer>[] sources = new Enumerator[200];
+        for (int i = 0; i < sources.length; i++) {
+            List<Integer> values = new ArrayList<Integer>();
+            for (int j = 0; j < 50; j++) {
+                values.add(i);
+            }
+            sources[i] = Enumerator.of(values);
+        }
+        final AtomicInteger count = new AtomicInteger(0);
+        Enumerator.interleave(sources).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                count.incrementAndGet();
+                return Unit.unit();
+            }
+        }), 64).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(200 * 50, count.get());
+
+        List<String> as = new ArrayList<String>();
+        List<String> bs = new ArrayList<String>();
+        for (int i = 0; i < 3000; i++) {
+            as.add("a");
+            bs.add("b");
+        }
+        final List<String> received = new ArrayList<String>();
+        Enumerator.interleave(new int[] { 3, 1 }, Enumerator.of(as), Enumerator.of(bs))
+            .applyOn(Iteratee.foreach(new Function<String, Unit>() {
+                @Override
+                public Unit apply(String s) {
+                    received.add(s);
+                    if (received.size() <= 200) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    return Unit.unit();
+                }
+            })).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(6000, received.size());
+        int a = 0;
+        for (String s : received.subList(0, 200)) {
+            if (s.equals("a")) {
+                a++;
+            }
+        }
+        Assert.assertTrue("weighted share was " + a, a >= 130 && a <= 170);
+    }
+
+    @Test
+    public void testBufferEnumeratee() throws Exception {
+        List<Integer> input = new ArrayList<Integer>();
+        for (int i = 0; i < 300; i++) {
+            input.add(i);
+        }
+        final List<Integer> received = new ArrayList<Integer>();
+        final AtomicInteger maxFill = new AtomicInteger(0);
+        final AtomicLong maxBytes = new AtomicLong(0L);
+        final BufferEnumeratee<Integer> buffer = Enumeratee.buffer(16);
+        Function<Integer, Unit> slow = new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                received.add(i);
+                maxFill.set(Math.max(maxFill.get(), buffer.fillLevel()));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Unit.unit();
+            }
+        };
+        Enumerator.of(input).through(buffer).applyOn(Iteratee.foreach(slow)).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(input, received);
+        Assert.assertTrue(maxFill.get() > 1);
+        Assert.assertTrue(maxFill.get() <= 16);
+
+        received.clear();
+        Enumerator.of(input).prefetch(32).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                received.add(i);
+                return Unit.unit();
+            }
+        }), 8).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(input, received);
+
+        received.clear();
+        final BufferEnumeratee<Integer> bounded = Enumeratee.buffer(1000, 40L, new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return 4;
+            }
+        });
+        Enumerator.of(input).through(bounded).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                received.add(i);
+                maxBytes.set(Math.max(maxBytes.get(), bounded.bufferedBytes()));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Unit.unit();
+            }
+        })).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(input, received);
+        Assert.assertTrue(maxBytes.get() > 4L);
+        Assert.assertTrue(maxBytes.get() <= 40L);
+
+        received.clear();
+        maxBytes.set(0L);
+        final BufferEnumeratee<Integer> windowed = Enumeratee.buffer(1000, 40L, new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return 4;
+            }
+        });
+        Enumerator.of(input).through(windowed).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                received.add(i);
+                maxBytes.set(Math.max(maxBytes.get(), windowed.bufferedBytes()));
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Unit.unit();
+            }
+        }), 4).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(input, received);
+        Assert.assertTrue(maxBytes.get() > 4L);
+        Assert.assertTrue(maxBytes.get() <= 40L);
+    }
+
+    @Test
+    public void testMergeSorted() throws Exception {
+        List<Integer> twos = new ArrayList<Integer>();
+        List<Integer> threes = new ArrayList<Integer>();
+        List<Integer> fives = new ArrayList<Integer>();
+        for (int i = 0; i < 3000; i++) {
+            twos.add(i * 2);
+            threes.add(i * 3);
+            fives.add(i * 5);
+        }
+        Comparator<Integer> natural = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return a.compareTo(b);
+            }
+        };
+        final List<Integer> merged = new ArrayList<Integer>();
+        Function<Integer, Unit> collect = new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                merged.add(i);
+                return Unit.unit();
+            }
+        };
+        Enumerator.mergeSorted(natural, 8, Enumerator.of(twos), Enumerator.of(threes), Enumerator.of(fives), Enumerator.<Integer>eof())
+            .applyOn(Iteratee.foreach(collect), 32).get(10, TimeUnit.SECONDS);
+        List<Integer> expected = new ArrayList<Integer>(twos);
+        expected.addAll(threes);
+        expected.addAll(fives);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, merged);
+        merged.clear();
+        Enumerator.mergeSorted(natural, Enumerator.of(twos), Enumerator.of(threes), Enumerator.of(fives))
+            .applyOnSync(Iteratee.foreach(collect));
+        Assert.assertEquals(expected, merged);
+    }
+
     @Test
     public void testInterleave() throws Exception {
         final CountDownLatch latch = new CountDownLatch(5);
@@ -345,6 +1231,198 @@ public class IterateeTest {
         Assert.assertEquals(0, latch.getCount());
     }
     
+    @Test
+    public void testHubOverflowPolicies() throws Exception {
+        List<Integer> input = new ArrayList<Integer>();
+        for (int i = 0; i < 2000; i++) {
+            input.add(i);
+        }
+        final AtomicInteger fastCount = new AtomicInteger(0);
+        final AtomicInteger slowCount = new AtomicInteger(0);
+        Iteratee<Integer, Unit> fast = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                fastCount.incrementAndGet();
+                return Unit.unit();
+            }
+        });
+        Iteratee<Integer, Unit> slow = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                slowCount.incrementAndGet();
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Unit.unit();
+            }
+        });
+        HubEnumerator<Integer> hub = Enumerator.broadcast(Enumerator.of(input), false)
+            .pace(HubEnumerator.Pace.FASTEST)
+            .add(fast)
+            .add(slow, 8, HubEnumerator.Overflow.DROP_OLDEST);
+        hub.broadcast();
+        fast.getAsyncResult().get(10, TimeUnit.SECONDS);
+        slow.getAsyncResult().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(2000, fastCount.get());
+        Assert.assertTrue(hub.dropped(slow) > 0);
+        Assert.assertEquals(2000L, slowCount.get() + hub.dropped(slow));
+
+        final AtomicInteger maxLag = new AtomicInteger(0);
+        final AtomicInteger blockedCount = new AtomicInteger(0);
+        final HubEnumerator<Integer> blocking = Enumerator.broadcast(Enumerator.of(input), false);
+        final Iteratee<Integer, Unit> paced = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                blockedCount.incrementAndGet();
+                return Unit.unit();
+            }
+        });
+        blocking.add(paced, 4, HubEnumerator.Overflow.BLOCK).add(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                maxLag.set(Math.max(maxLag.get(), blocking.lag(paced)));
+                return Unit.unit();
+            }
+        }), 4, HubEnumerator.Overflow.BLOCK);
+        blocking.broadcast();
+        paced.getAsyncResult().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(2000, blockedCount.get());
+        Assert.assertTrue(maxLag.get() <= 8);
+
+        final AtomicInteger windowedCount = new AtomicInteger(0);
+        Function<Integer, Unit> countWindowed = new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                windowedCount.incrementAndGet();
+                return Unit.unit();
+            }
+        };
+        Iteratee<Integer, Unit> windowed1 = Iteratee.foreach(countWindowed);
+        Iteratee<Integer, Unit> windowed2 = Iteratee.foreach(countWindowed);
+        HubEnumerator<Integer> credited = Enumerator.broadcast(Enumerator.of(input), false)
+            .window(8).add(windowed1, 16, HubEnumerator.Overflow.BLOCK).add(windowed2, 16, HubEnumerator.Overflow.BLOCK);
+        credited.broadcast();
+        windowed1.getAsyncResult().get(10, TimeUnit.SECONDS);
+        windowed2.getAsyncResult().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(4000, windowedCount.get());
+
+        final AtomicInteger keptCount = new AtomicInteger(0);
+        Iteratee<Integer, Unit> keeper = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                keptCount.incrementAndGet();
+                return Unit.unit();
+            }
+        });
+        Iteratee<Integer, Unit> quitter = Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Unit.unit();
+            }
+        });
+        HubEnumerator<Integer> churn = Enumerator.broadcast(Enumerator.of(input), false)
+            .pace(HubEnumerator.Pace.FASTEST)
+            .add(keeper)
+            .add(quitter, 1, HubEnumerator.Overflow.DISCONNECT);
+        Assert.assertEquals(2, churn.connected());
+        churn.broadcast();
+        quitter.getAsyncResult().get(10, TimeUnit.SECONDS);
+        keeper.getAsyncResult().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(2000, keptCount.get());
+        long deadline = System.currentTimeMillis() + 5000L;
+        while (churn.connected() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Assert.assertEquals(0, churn.connected());
+        Assert.assertEquals(0, churn.lag(quitter));
+        Assert.assertEquals(0L, churn.dropped(quitter));
+        Assert.assertEquals(0, churn.lag(keeper));
+        Assert.assertEquals(0, hub.connected());
+        Assert.assertTrue(hub.dropped(slow) > 0);
+        Assert.assertEquals(0, hub.lag(slow));
+    }
+
+    @Test
+    public void testConflateEnumeratee() throws Exception {
+        List<Integer> input = new ArrayList<Integer>();
+        for (int i = 1; i <= 5000; i++) {
+            input.add(i);
+        }
+        final AtomicLong sum = new AtomicLong(0L);
+        final AtomicInteger received = new AtomicInteger(0);
+        Function<Long, Unit> slowSum = new Function<Long, Unit>() {
+            @Override
+            public Unit apply(Long partial) {
+                sum.addAndGet(partial);
+                received.incrementAndGet();
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Unit.unit();
+            }
+        };
+        Function<Integer, Long> seed = new Function<Integer, Long>() {
+            @Override
+            public Long apply(Integer i) {
+                return i.longValue();
+            }
+        };
+        Function2<Long, Integer, Long> add = new Function2<Long, Integer, Long>() {
+            @Override
+            public Long apply(Long state, Integer i) {
+                return state + i;
+            }
+        };
+        Enumerator.of(input).through(Enumeratee.conflate(seed, add))
+            .applyOn(Iteratee.foreach(slowSum)).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(5000L * 5001L / 2L, sum.get());
+        Assert.assertTrue(received.get() < 5000);
+
+        final AtomicInteger latest = new AtomicInteger(0);
+        Enumerator.of(input).through(Enumeratee.<Integer>keepLatest())
+            .applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                @Override
+                public Unit apply(Integer i) {
+                    latest.set(i);
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return Unit.unit();
+                }
+            }), 8).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(5000, latest.get());
+
+        sum.set(0L);
+        received.set(0);
+        Iteratee<Long, Unit> dashboard = Iteratee.foreach(slowSum);
+        HubEnumerator<Long> hub = Enumerator.broadcast(Enumerator.of(input).through(Enumeratee.map(new Function<Integer, Long>() {
+            @Override
+            public Long apply(Integer i) {
+                return i.longValue();
+            }
+        })), false).pace(HubEnumerator.Pace.FASTEST).add(dashboard, 4, new Function2<Long, Long, Long>() {
+            @Override
+            public Long apply(Long a, Long b) {
+                return a + b;
+            }
+        });
+        hub.broadcast();
+        dashboard.getAsyncResult().get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(5000L * 5001L / 2L, sum.get());
+        Assert.assertTrue(hub.dropped(dashboard) > 0);
+    }
+
     @Test
     public void testFileRW() throws Exception {
         final AtomicInteger count = new AtomicInteger(0);
@@ -376,7 +1454,630 @@ public class IterateeTest {
         f.delete();
     }
 
-    public static class ListIteratee extends Iteratee<String, String> {
+    @Test
+    public void testFileLinesEnumerator() throws Exception {
+        File f = File.createTempFile("iteratee-lines", ".txt");
+        f.deleteOnExit();
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            longLine.append((char) ('a' + (i % 26)));
+        }
+        List<String> expected = new ArrayList<String>();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            String line = "line " + i + " \u00e9t\u00e9";
+            expected.add(line);
+            content.append(line).append(i % 2 == 0 ? "\r\n" : "\n");
+        }
+        expected.add("");
+        expected.add(longLine.toString());
+        content.append("\n").append(longLine);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(content.toString().getBytes("UTF-8"));
+        out.close();
+        final List<String> lines = new ArrayList<String>();
+        Enumerator.fromFileLines(f, Charset.forName("UTF-8")).batched(256)
+            .applyOn(Iteratee.foreach(new Function<String, Unit>() {
+                @Override
+                public Unit apply(String line) {
+                    lines.add(line);
+                    return Unit.unit();
+                }
+            }), 1024).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(expected, lines);
+        final List<String> views = new ArrayList<String>();
+        Enumerator.fromFileLineBuffers(f).batched(256)
+            .applyOn(Iteratee.foreach(new Function<ByteBuffer, Unit>() {
+                @Override
+                public Unit apply(ByteBuffer line) {
+                    views.add(Charset.forName("UTF-8").decode(line).toString());
+                    return Unit.unit();
+                }
+            })).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(expected, views);
+        for (String name : new String[] { "UTF-16", "UTF-16LE", "UTF-32" }) {
+            try {
+                Enumerator.fromFileLines(f, Charset.forName(name));
+                Assert.fail(name + " should be rejected");
+            } catch (IllegalArgumentException rejected) {
+            }
+        }
+    }
+
+    @Test
+    public void testChannelIteratee() throws Exception {
+        File pom = new File("pom.xml");
+        File f = File.createTempFile("iteratee-channel", ".xml");
+        f.deleteOnExit();
+        Promise<Long> written = Enumerator.fromMappedFile(pom, 100).batched(8)
+            .applyOn(Iteratee.toFile(f, 512, 10L, true), 64);
+        Assert.assertEquals(Long.valueOf(pom.length()), written.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(readFully(pom), readFully(f));
+        Promise<Long> failed = Enumerator.fromMappedFile(pom, 100)
+            .applyOn(Iteratee.toChannel(new FileInputStream(pom).getChannel(), 0, 0L, false));
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            Assert.fail("writing to a read-only channel should fail the promise");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(failed.isFailure());
+        }
+        Promise<Long> stalled = Enumerator.fromMappedFile(pom, 100)
+            .applyOnSync(Iteratee.toChannel(new GatheringByteChannel() {
+                @Override
+                public long write(ByteBuffer[] srcs, int offset, int length) {
+                    return 0L;
+                }
+                @Override
+                public long write(ByteBuffer[] srcs) {
+                    return 0L;
+                }
+                @Override
+                public int write(ByteBuffer src) {
+                    return 0;
+                }
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+                @Override
+                public void close() {
+                }
+            }, 0, 10L, false));
+        try {
+            stalled.get(10, TimeUnit.SECONDS);
+            Assert.fail("a channel that never accepts bytes should fail the promise");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testRollingFileIteratee() throws Exception {
+        File pom = new File("pom.xml");
+        File dir = File.createTempFile("iteratee-segments", "");
+        dir.delete();
+        dir.mkdirs();
+        List<File> segments = Enumerator.fromMappedFile(pom, 256)
+            .applyOn(Iteratee.toRollingFiles(dir, "pom", 1024, 0L, 512, 0L, true)).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals((pom.length() + 1023) / 1024, segments.size());
+        StringBuilder content = new StringBuilder();
+        for (File segment : segments) {
+            Assert.assertTrue(segment.length() <= 1024);
+            content.append(readFully(segment));
+            segment.delete();
+        }
+        Assert.assertEquals(readFully(pom), content.toString());
+        Assert.assertEquals(0, dir.list().length);
+        segments = Enumerator.fromMappedFile(pom, 100).batched(8)
+            .applyOn(Iteratee.toRollingFiles(dir, "split", 1000, 0L, 4096, 0L, false), 64).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals((pom.length() + 999) / 1000, segments.size());
+        content = new StringBuilder();
+        for (int i = 0; i < segments.size(); i++) {
+            File segment = segments.get(i);
+            if (i < segments.size() - 1) {
+                Assert.assertEquals(1000L, segment.length());
+            }
+            content.append(readFully(segment));
+            segment.delete();
+        }
+        Assert.assertEquals(readFully(pom), content.toString());
+        Assert.assertEquals(0, dir.list().length);
+        dir.delete();
+    }
+
+    @Test
+    public void testContCountsAsCredit() throws Exception {
+        List<Integer> input = new ArrayList<Integer>();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            input.add(i);
+            expected.append(i);
+        }
+        Function<Integer, String> render = new Function<Integer, String>() {
+            @Override
+            public String apply(Integer i) {
+                return String.valueOf(i);
+            }
+        };
+        Assert.assertEquals(expected.toString(), Enumerator.of(input)
+            .through(Enumeratee.mapParallel(4, render))
+            .applyOn(new ContIteratee(), 4).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(expected.toString(), Enumerator.of(input)
+            .through(Enumeratee.map(render))
+            .through(Enumeratee.conflate(new Function2<String, String, String>() {
+                @Override
+                public String apply(String state, String s) {
+                    return state + s;
+                }
+            }))
+            .applyOn(new ContIteratee(), 4).get(10, TimeUnit.SECONDS));
+        List<String> evens = new ArrayList<String>();
+        List<String> odds = new ArrayList<String>();
+        StringBuilder merged = new StringBuilder();
+        for (int i = 10; i < 74; i++) {
+            (i % 2 == 0 ? evens : odds).add(String.valueOf(i));
+            merged.append(i);
+        }
+        Comparator<String> natural = new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return a.compareTo(b);
+            }
+        };
+        Assert.assertEquals(merged.toString(), Enumerator.mergeSorted(natural, Enumerator.of(evens), Enumerator.of(odds))
+            .applyOn(new ContIteratee(), 4).get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(expected.toString(), Enumerator.of(input)
+            .through(Enumeratee.map(render))
+            .through(Enumeratee.<String>buffer(16))
+            .applyOn(new ContIteratee(), 4).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testMapParallelEnumeratee() throws Exception {
+        List<Integer> input = new ArrayList<Integer>();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 64; i++) {
+            input.add(i);
+            expected.add("#" + (i * 2));
+        }
+        Function<Integer, Integer> slowDouble = new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                try {
+                    Thread.sleep((i * 7) % 20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return i * 2;
+            }
+        };
+        Function<Integer, String> render = new Function<Integer, String>() {
+            @Override
+            public String apply(Integer i) {
+                return "#" + i;
+            }
+        };
+        final List<String> ordered = new ArrayList<String>();
+        Enumerator.of(input).through(Enumeratee.mapParallel(8, slowDouble)).through(Enumeratee.map(render))
+            .applyOn(Iteratee.foreach(new Function<String, Unit>() {
+                @Override
+                public Unit apply(String s) {
+                    ordered.add(s);
+                    return Unit.unit();
+                }
+            })).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(expected, ordered);
+        final List<String> unordered = new ArrayList<String>();
+        Enumerator.of(input).batched(16).through(Enumeratee.mapParallelUnordered(8, slowDouble)).through(Enumeratee.map(render))
+            .applyOn(Iteratee.foreach(new Function<String, Unit>() {
+                @Override
+                public Unit apply(String s) {
+                    unordered.add(s);
+                    return Unit.unit();
+                }
+            }), 32).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(expected.size(), unordered.size());
+        Assert.assertTrue(unordered.containsAll(expected));
+        final List<String> async = new ArrayList<String>();
+        Enumerator.of(input).through(Enumeratee.map(slowDouble))
+            .through(Enumeratee.mapAsync(4, new Function<Integer, Promise<String>>() {
+                @Override
+                public Promise<String> apply(Integer i) {
+                    return i % 4 == 0 ? Promise.<String>pure(null) : Promise.pure("#" + i);
+                }
+            })).applyOn(Iteratee.foreach(new Function<String, Unit>() {
+                @Override
+                public Unit apply(String s) {
+                    async.add(s);
+                    return Unit.unit();
+                }
+            }), 8).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(32, async.size());
+        Assert.assertEquals("#2", async.get(0));
+        Promise<Unit> failing = Enumerator.of(input)
+            .through(Enumeratee.mapAsync(4, new Function<Integer, Promise<String>>() {
+                @Override
+                public Promise<String> apply(Integer i) {
+                    Promise<String> result = new Promise<String>();
+                    if (i == 10) {
+                        result.failure(new IllegalStateException("boom"));
+                    } else {
+                        result.apply("#" + i);
+                    }
+                    return result;
+                }
+            })).applyOn(Iteratee.foreach(new Function<String, Unit>() {
+                @Override
+                public Unit apply(String s) {
+                    return Unit.unit();
+                }
+            }));
+        failing.await(10, TimeUnit.SECONDS);
+        Assert.assertTrue(failing.isFailure());
+        Assert.assertTrue(failing.getError() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testGroupByPartitions() throws Exception {
+        List<Integer> input = new ArrayList<Integer>();
+        long expected = 0L;
+        for (int i = 0; i < 10000; i++) {
+            input.add(i);
+            expected += i;
+        }
+        final AtomicInteger outOfOrder = new AtomicInteger(0);
+        List<Long> sums = Enumerator.of(input).batched(64).groupBy(4, new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return i % 37;
+            }
+        }, new Function<Enumerator<Integer>, Promise<Long>>() {
+            @Override
+            public Promise<Long> apply(Enumerator<Integer> partition) {
+                final int[] last = new int[37];
+                Arrays.fill(last, -1);
+                final AtomicLong sum = new AtomicLong(0L);
+                return partition.through(Enumeratee.map(new Function<Integer, Integer>() {
+                    @Override
+                    public Integer apply(Integer i) {
+                        if (last[i % 37] >= i) {
+                            outOfOrder.incrementAndGet();
+                        }
+                        last[i % 37] = i;
+                        return i;
+                    }
+                })).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                    @Override
+                    public Unit apply(Integer i) {
+                        sum.addAndGet(i);
+                        return Unit.unit();
+                    }
+                }), 32).map(new Function<Unit, Long>() {
+                    @Override
+                    public Long apply(Unit u) {
+                        return sum.get();
+                    }
+                });
+            }
+        }).get(10, TimeUnit.SECONDS);
+        Assert.assertEquals(4, sums.size());
+        long total = 0L;
+        for (Long sum : sums) {
+            total += sum;
+        }
+        Assert.assertEquals(expected, total);
+        Assert.assertEquals(0, outOfOrder.get());
+
+        final List<Promise<Unit>> partitions = Collections.synchronizedList(new ArrayList<Promise<Unit>>());
+        Promise<List<Unit>> failed = Enumerator.of(input).batched(64)
+            .through(Enumeratee.mapAsync(4, new Function<Integer, Promise<Integer>>() {
+                @Override
+                public Promise<Integer> apply(Integer i) {
+                    Promise<Integer> result = new Promise<Integer>();
+                    if (i == 5000) {
+                        result.failure(new IllegalStateException("boom"));
+                    } else {
+                        result.apply(i);
+                    }
+                    return result;
+                }
+            })).groupBy(4, new Function<Integer, Integer>() {
+                @Override
+                public Integer apply(Integer i) {
+                    return i % 37;
+                }
+            }, new Function<Enumerator<Integer>, Promise<Unit>>() {
+                @Override
+                public Promise<Unit> apply(Enumerator<Integer> partition) {
+                    Promise<Unit> done = partition.applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+                        @Override
+                        public Unit apply(Integer i) {
+                            return Unit.unit();
+                        }
+                    }));
+                    partitions.add(done);
+                    return done;
+                }
+            });
+        failed.await(10, TimeUnit.SECONDS);
+        Assert.assertTrue(failed.isFailure());
+        Assert.assertEquals(4, partitions.size());
+        for (Promise<Unit> partition : partitions) {
+            partition.await(10, TimeUnit.SECONDS);
+            Assert.assertTrue(partition.isDone());
+            Assert.assertTrue(partition.isFailure());
+        }
+    }
+
+    @Test
+    public void testLockFreePromise() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            final int count = 10000;
+            final List<Promise<Integer>> promises = new ArrayList<Promise<Integer>>(count);
+            final AtomicInteger redeemed = new AtomicInteger(0);
+            final CountDownLatch latch = new CountDownLatch(count * 4);
+            Action<Promise<Integer>> callback = new Action<Promise<Integer>>() {
+                @Override
+                public void apply(Promise<Integer> p) {
+                    redeemed.addAndGet(p.getOrNull());
+                    latch.countDown();
+                }
+            };
+            for (int i = 0; i < count; i++) {
+                promises.add(new Promise<Integer>());
+            }
+            for (int t = 0; t < 4; t++) {
+                final boolean completer = t % 2 == 0;
+                final Action<Promise<Integer>> action = callback;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < count; i++) {
+                            promises.get(i).onRedeem(action);
+                            if (completer) {
+                                promises.get(i).apply(1);
+                            }
+                        }
+                    }
+                });
+            }
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(count * 4, redeemed.get());
+
+            final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+            Promise<Integer> source = new Promise<Integer>();
+            Promise<String> mapped = source.map(new Function<Integer, String>() {
+                @Override
+                public String apply(Integer i) {
+                    threads.add(Thread.currentThread());
+                    return "#" + i;
+                }
+            }, pool);
+            final Promise<String> inner = new Promise<String>();
+            Promise<String> chained = mapped.flatMap(new Function<String, Promise<String>>() {
+                @Override
+                public Promise<String> apply(String s) {
+                    return inner;
+                }
+            });
+            source.apply(42);
+            Assert.assertEquals("#42", mapped.get(5, TimeUnit.SECONDS));
+            Assert.assertFalse(threads.contains(Thread.currentThread()));
+            Assert.assertFalse(chained.isDone());
+            inner.failure(new IllegalStateException("inner"));
+            try {
+                chained.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            try {
+                new Promise<Unit>().get(10, TimeUnit.MILLISECONDS);
+                Assert.fail();
+            } catch (TimeoutException e) {
+            }
+
+            Promise<Integer> polled = new Promise<Integer>();
+            final List<Integer> order = new ArrayList<Integer>();
+            for (int i = 0; i < 1000; i++) {
+                final int rank = i;
+                if (i % 100 == 0) {
+                    polled.onRedeem(new Action<Promise<Integer>>() {
+                        @Override
+                        public void apply(Promise<Integer> p) {
+                            order.add(rank);
+                        }
+                    });
+                }
+                try {
+                    polled.get(1, TimeUnit.NANOSECONDS);
+                    Assert.fail();
+                } catch (TimeoutException e) {
+                }
+            }
+            polled.apply(1);
+            Assert.assertEquals(Arrays.asList(0, 100, 200, 300, 400, 500, 600, 700, 800, 900), order);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testPromiseCombinators() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            final int count = 1000;
+            final List<Promise<Integer>> promises = new ArrayList<Promise<Integer>>(count);
+            for (int i = 0; i < count; i++) {
+                promises.add(new Promise<Integer>());
+            }
+            Promise<List<Integer>> all = Promise.sequence(promises);
+            Promise<List<Integer>> first = Promise.firstN(10, promises);
+            Promise<Integer> any = Promise.waitAny(promises);
+            Promise<Long> sum = Promise.reduce(promises, 0L, new Function2<Long, Integer, Long>() {
+                @Override
+                public Long apply(Long acc, Integer i) {
+                    return acc + i;
+                }
+            });
+            for (int t = 0; t < 4; t++) {
+                final int offset = t;
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = offset; i < count; i += 4) {
+                            promises.get(i).apply(i);
+                        }
+                    }
+                });
+            }
+            List<Integer> values = all.get(20, TimeUnit.SECONDS);
+            Assert.assertEquals(count, values.size());
+            for (int i = 0; i < count; i++) {
+                Assert.assertEquals(Integer.valueOf(i), values.get(i));
+            }
+            values.add(-1);
+            List<Integer> firsts = first.get(1, TimeUnit.SECONDS);
+            Assert.assertEquals(10, firsts.size());
+            firsts.add(-1);
+            Assert.assertNotNull(any.get(1, TimeUnit.SECONDS));
+            Assert.assertEquals(Long.valueOf((long) count * (count - 1) / 2), sum.get(1, TimeUnit.SECONDS));
+            Promise<Integer> failing = new Promise<Integer>();
+            Promise<List<Integer>> failed = Promise.waitAll(Promise.pure(1), failing);
+            failing.failure(new IllegalStateException("boom"));
+            try {
+                failed.get(1, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            Assert.assertTrue(Promise.sequence(new ArrayList<Promise<Integer>>()).get().isEmpty());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeouts() throws Exception {
+        try {
+            new Promise<String>().within(50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertEquals("ok", Promise.pure("ok").within(50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS));
+
+        int count = 100;
+        List<Promise<Integer>> sources = new ArrayList<Promise<Integer>>(count);
+        List<Promise<Integer>> bounded = new ArrayList<Promise<Integer>>(count);
+        for (int i = 0; i < count; i++) {
+            Promise<Integer> source = new Promise<Integer>();
+            sources.add(source);
+            bounded.add(source.within(i % 2 == 0 ? 1 : 60000, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 1; i < count; i += 2) {
+            sources.get(i).apply(i);
+        }
+        int expired = 0;
+        for (int i = 0; i < count; i++) {
+            try {
+                Assert.assertEquals(Integer.valueOf(i), bounded.get(i).get(5, TimeUnit.SECONDS));
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof TimeoutException);
+                expired++;
+            }
+        }
+        Assert.assertEquals(count / 2, expired);
+
+        final AtomicInteger received = new AtomicInteger(0);
+        PushEnumerator<Integer> silent = Enumerator.unicast(Integer.class);
+        Promise<Unit> stalled = silent.through(Enumeratee.map(new Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer i) {
+                return i * 2;
+            }
+        })).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                received.incrementAndGet();
+                return Unit.unit();
+            }
+        }), 100, TimeUnit.MILLISECONDS);
+        try {
+            stalled.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        silent.push(1);
+        Thread.sleep(100);
+        Assert.assertEquals(0, received.get());
+
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        Promise<Unit> stalledStream = Enumerator.unicast(byte[].class).applyOn(Iteratee.toStream(new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+            }
+        }), 50, TimeUnit.MILLISECONDS);
+        try {
+            stalledStream.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertTrue(closed.get());
+        File f = File.createTempFile("iteratee-timeout", ".bin");
+        f.deleteOnExit();
+        FileChannel channel = new FileOutputStream(f).getChannel();
+        Promise<Long> stalledChannel = Enumerator.unicast(ByteBuffer.class)
+            .applyOn(Iteratee.toChannel(channel), 50, TimeUnit.MILLISECONDS);
+        try {
+            stalledChannel.get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Assert.assertFalse(channel.isOpen());
+
+        Promise<Unit> finished = Enumerator.of(1, 2, 3).applyOn(Iteratee.foreach(new Function<Integer, Unit>() {
+            @Override
+            public Unit apply(Integer i) {
+                received.incrementAndGet();
+                return Unit.unit();
+            }
+        }), 5, TimeUnit.SECONDS);
+        finished.get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(3, received.get());
+    }
+
+    // answers Cont whatever the window, like iteratees predating Demand
+    private static class ContIteratee extends Iteratee<String, String> {
+
+        private StringBuilder builder = new StringBuilder();
+
+        @Override
+        public void onReceive(Object msg, Ref sender, Ref self) throws Exception {
+            for (Elem e : F.caseClassOf(Elem.class, msg)) {
+                for (Object s : e.get()) {
+                    builder.append(s);
+                }
+                sender.tell(Cont.INSTANCE, self);
+            }
+            for (Elems e : F.caseClassOf(Elems.class, msg)) {
+                for (Object s : e.get()) {
+                    builder.append(s);
+                }
+                sender.tell(Cont.INSTANCE, self);
+            }
+            for (EOF e : F.caseClassOf(EOF.class, msg)) {
+                done(builder.toString(), sender, self);
+            }
+        }
+    }
+
+    public static class ListIteratee extends ActorIteratee<String, String> {
         
         private StringBuilder builder = new StringBuilder();
 